@@ -0,0 +1,164 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks AntFrameParser against the awkward cases of a real serial line,
+ * then measures how many frames per second it parses.
+ *
+ * Run with: java com.dtomasiewicz.antchirp.gateway.AntFrameParserBench
+ * (see bench/README). Exits non-zero if a check fails.
+ */
+public class AntFrameParserBench
+{
+    /** Broadcast data: channel and 8 data bytes. */
+    private static final byte MESG_BROADCAST_DATA_ID = (byte) 0x4E;
+
+    private static final int FRAMES = 1 << 16;
+
+    private static final int ROUNDS = 40;
+
+    /** Bytes delivered per read, about what a USB serial read returns. */
+    private static final int READ_SIZE = 64;
+
+    public static void main(String[] args)
+    {
+        checkPartialReads();
+        checkResync();
+        checkBadChecksum();
+        System.out.println("checks passed");
+
+        byte[] stream = stream(FRAMES);
+        AntFrameParser parser = new AntFrameParser();
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        // Warm up the JIT before timing
+        for(int round = 0; round < ROUNDS / 4; round++)
+            feed(parser, buffer, stream, READ_SIZE);
+
+        long frames = 0;
+        long start = System.nanoTime();
+        for(int round = 0; round < ROUNDS; round++)
+            frames += feed(parser, buffer, stream, READ_SIZE);
+        long elapsed = System.nanoTime() - start;
+
+        check(frames == (long) FRAMES * ROUNDS, "lost frames: " + frames);
+        System.out.println(frames + " frames in " + elapsed / 1000000 + "ms, "
+                + frames * 1000000000L / elapsed + " frames/s");
+    }
+
+    /** A frame split across reads comes out whole once its last byte is in. */
+    private static void checkPartialReads()
+    {
+        byte[] stream = stream(64);
+        for(int readSize = 1; readSize <= 16; readSize++)
+        {
+            AntFrameParser parser = new AntFrameParser();
+            long frames = feed(parser, ByteBuffer.allocate(64), stream, readSize);
+            check(frames == 64, "read size " + readSize + ": " + frames + " frames");
+            check(parser.getSkippedBytes() == 0, "read size " + readSize + ": bytes skipped");
+        }
+    }
+
+    /** Garbage between frames, sync bytes included, costs no frame after it. */
+    private static void checkResync()
+    {
+        byte[] garbage = { 0x00, SerialMesg.MESG_TX_SYNC, (byte) 0xFF, SerialMesg.MESG_TX_SYNC, 0x09, 0x12 };
+        byte[] frame = frame(7);
+        byte[] stream = concat(garbage, frame, garbage, frame);
+        AntFrameParser parser = new AntFrameParser();
+        long frames = feed(parser, ByteBuffer.allocate(64), stream, 5);
+        check(frames == 2, "after garbage: " + frames + " frames");
+    }
+
+    /** A corrupted frame is dropped and counted; the frames around it get through. */
+    private static void checkBadChecksum()
+    {
+        byte[] bad = frame(2);
+        bad[5] ^= 0x10;
+        byte[] stream = concat(frame(1), bad, frame(3), new byte[0]);
+        AntFrameParser parser = new AntFrameParser();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put(stream).flip();
+        AntFrameParser.Frame first = parser.next(buffer);
+        check(first != null && first.get(3) == 1, "frame before the bad one");
+        AntFrameParser.Frame next = parser.next(buffer);
+        check(next != null && next.get(3) == 3, "frame after the bad one");
+        check(parser.next(buffer) == null, "bad frame returned");
+        check(parser.getChecksumErrors() >= 1, "checksum error not counted");
+    }
+
+    /**
+     * Feeds the stream through the buffer readSize bytes at a time, as a
+     * serial read loop would.
+     *
+     * @return frames parsed
+     */
+    private static long feed(AntFrameParser parser, ByteBuffer buffer, byte[] stream, int readSize)
+    {
+        buffer.clear();
+        long frames = 0;
+        int sum = 0;
+        for(int read = 0; read < stream.length; read += readSize)
+        {
+            buffer.put(stream, read, Math.min(readSize, stream.length - read));
+            buffer.flip();
+            AntFrameParser.Frame frame;
+            while((frame = parser.next(buffer)) != null)
+            {
+                frames++;
+                sum += frame.get(3);
+            }
+            buffer.compact();
+        }
+        // Keep the reads of frame data from being optimised away
+        if(sum == 42)
+            System.out.print("");
+        return frames;
+    }
+
+    private static byte[] stream(int frames)
+    {
+        byte[] frame = frame(0);
+        byte[] stream = new byte[frames * frame.length];
+        for(int i = 0; i < frames; i++)
+            System.arraycopy(frame(i), 0, stream, i * frame.length, frame.length);
+        return stream;
+    }
+
+    /** A broadcast data frame on channel 0, seq in the first data byte. */
+    private static byte[] frame(int seq)
+    {
+        byte[] frame = new byte[9 + SerialMesg.MESG_FRAME_OVERHEAD];
+        frame[0] = SerialMesg.MESG_TX_SYNC;
+        frame[1] = 9;
+        frame[2] = MESG_BROADCAST_DATA_ID;
+        frame[3] = 0;
+        frame[4] = (byte) seq;
+        for(int i = 5; i < frame.length - 1; i++)
+            frame[i] = (byte) (seq * i);
+        byte checksum = 0;
+        for(int i = 0; i < frame.length - 1; i++)
+            checksum ^= frame[i];
+        frame[frame.length - 1] = checksum;
+        return frame;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b, byte[] c, byte[] d)
+    {
+        byte[] all = new byte[a.length + b.length + c.length + d.length];
+        System.arraycopy(a, 0, all, 0, a.length);
+        System.arraycopy(b, 0, all, a.length, b.length);
+        System.arraycopy(c, 0, all, a.length + b.length, c.length);
+        System.arraycopy(d, 0, all, a.length + b.length + c.length, d.length);
+        return all;
+    }
+
+    private static void check(boolean ok, String what)
+    {
+        if(!ok)
+        {
+            System.err.println("FAILED: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Compares the two ways of running many sessions over one I/O thread:
+ * GeocacheGateway's blocking code on a thread per session, reading a
+ * SessionMailbox, against callbacks run on a fixed pool, the way
+ * AntPlusManager's responseEventHandler drives a channel.
+ *
+ * A router thread plays the stick's I/O thread, handing every session
+ * the given number of messages in turn. Each session steps through a small state machine,
+ * as a real one goes from configuring to reading pages, and is done after
+ * its last message. The router lets no session fall more than WINDOW
+ * messages behind, so neither side drops any.
+ *
+ * Run with: java com.dtomasiewicz.antchirp.gateway.SessionBench [sessions] [steps]
+ * (see bench/README).
+ */
+public class SessionBench
+{
+    /** Broadcast data: channel and 8 data bytes. */
+    private static final byte MESG_BROADCAST_DATA_ID = (byte) 0x4E;
+
+    /** Messages a session may have waiting, below SessionMailbox's ring size. */
+    private static final int WINDOW = 8;
+
+    /** Session states, in the order a session goes through them. */
+    private static final int CONFIGURING = 0;
+    private static final int SEARCHING = 1;
+    private static final int READING = 2;
+    private static final int DONE = 3;
+
+    public static void main(String[] args) throws Exception
+    {
+        int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        // Warm up both before timing
+        runBlocking(sessions / 4, steps / 4);
+        runCallbacks(sessions / 4, steps / 4);
+
+        report("blocking, thread per session", sessions, steps, runBlocking(sessions, steps));
+        report("callbacks on " + poolSize() + " threads", sessions, steps, runCallbacks(sessions, steps));
+    }
+
+    /** What one run took. */
+    private static class Result
+    {
+        long elapsed;
+        long heap;
+
+        /** Platform threads alive; virtual threads aren't counted, and stacks aren't heap. */
+        int threads;
+    }
+
+    private static Result runBlocking(final int sessions, final int steps) throws Exception
+    {
+        final SessionMailbox[] mailboxes = new SessionMailbox[sessions];
+        final AtomicIntegerArray consumed = new AtomicIntegerArray(sessions);
+        final CountDownLatch done = new CountDownLatch(sessions);
+        ExecutorService executor = GeocacheGateway.newSessionExecutor();
+        for(int i = 0; i < sessions; i++)
+        {
+            mailboxes[i] = new SessionMailbox();
+            final int session = i;
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    byte[] message = new byte[SessionMailbox.SLOT_SIZE];
+                    int state = CONFIGURING;
+                    try
+                    {
+                        while(state != DONE)
+                        {
+                            if(!mailboxes[session].take(message, 10000))
+                                throw new IllegalStateException("session " + session + " starved");
+                            state = step(state, message, steps);
+                            consumed.incrementAndGet(session);
+                        }
+                    }
+                    catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                    done.countDown();
+                }
+            });
+        }
+        Result result = new Result();
+        result.heap = usedHeap();
+        result.threads = Thread.activeCount();
+        long start = System.nanoTime();
+        route(sessions, steps, consumed, new Sink()
+        {
+            public void deliver(int session, byte[] buffer, int offset)
+            {
+                mailboxes[session].put(buffer, offset);
+            }
+        });
+        await(done);
+        result.elapsed = System.nanoTime() - start;
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        return result;
+    }
+
+    private static Result runCallbacks(final int sessions, final int steps) throws Exception
+    {
+        final int[] states = new int[sessions];
+        final AtomicIntegerArray consumed = new AtomicIntegerArray(sessions);
+        final CountDownLatch done = new CountDownLatch(sessions);
+        // One thread per stripe of sessions, so each session's messages stay in order
+        final ExecutorService[] stripes = new ExecutorService[poolSize()];
+        for(int i = 0; i < stripes.length; i++)
+            stripes[i] = Executors.newSingleThreadExecutor();
+        Result result = new Result();
+        result.heap = usedHeap();
+        result.threads = Thread.activeCount();
+        long start = System.nanoTime();
+        route(sessions, steps, consumed, new Sink()
+        {
+            public void deliver(final int session, byte[] buffer, int offset)
+            {
+                // Copied, as the I/O thread reuses its buffer
+                final byte[] message = new byte[(buffer[offset] & 0xFF) + 2];
+                System.arraycopy(buffer, offset, message, 0, message.length);
+                stripes[session % stripes.length].execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        states[session] = step(states[session], message, steps);
+                        consumed.incrementAndGet(session);
+                        if(states[session] == DONE)
+                            done.countDown();
+                    }
+                });
+            }
+        });
+        await(done);
+        result.elapsed = System.nanoTime() - start;
+        for(ExecutorService stripe : stripes)
+            stripe.shutdownNow();
+        return result;
+    }
+
+    private interface Sink
+    {
+        void deliver(int session, byte[] buffer, int offset);
+    }
+
+    /**
+     * Hands every session steps messages, round by round, from one
+     * reused buffer as the stick's I/O thread does.
+     */
+    private static void route(int sessions, int steps, AtomicIntegerArray consumed, Sink sink)
+    {
+        byte[] buffer = new byte[SessionMailbox.SLOT_SIZE];
+        buffer[0] = 9;
+        buffer[1] = MESG_BROADCAST_DATA_ID;
+        for(int seq = 0; seq < steps; seq++)
+        {
+            for(int session = 0; session < sessions; session++)
+            {
+                while(seq - consumed.get(session) >= WINDOW)
+                    Thread.yield();
+                buffer[2] = (byte) session;
+                buffer[3] = (byte) (seq >> 8);
+                buffer[4] = (byte) seq;
+                sink.deliver(session, buffer, 0);
+            }
+        }
+    }
+
+    /**
+     * Moves a session on by one message: a few to configure, a few to find
+     * the device, then pages until the last message.
+     */
+    private static int step(int state, byte[] message, int steps)
+    {
+        int seq = (message[3] & 0xFF) << 8 | (message[4] & 0xFF);
+        if(seq == steps - 1)
+            return DONE;
+        switch(state)
+        {
+        case CONFIGURING:
+            return seq >= 4 ? SEARCHING : CONFIGURING;
+        case SEARCHING:
+            return seq >= 8 ? READING : SEARCHING;
+        default:
+            return state;
+        }
+    }
+
+    private static void await(CountDownLatch done) throws InterruptedException
+    {
+        if(!done.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException(done.getCount() + " sessions did not finish");
+    }
+
+    private static int poolSize()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Heap in use once the sessions are set up, garbage collected first. */
+    private static long usedHeap() throws InterruptedException
+    {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        Thread.sleep(100);
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String name, int sessions, int steps, Result result)
+    {
+        long messages = (long) sessions * steps;
+        System.out.println(name + ": " + sessions + " sessions, " + messages + " messages in "
+                + result.elapsed / 1000000 + "ms, " + messages * 1000000000L / result.elapsed
+                + " messages/s; with sessions waiting " + result.heap / 1024 + "KB heap, "
+                + result.threads + " threads");
+    }
+}
@@ -11,15 +11,18 @@ import android.content.ComponentName;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
+import android.content.res.Configuration;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.SubMenu;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.ImageButton;
 import android.widget.ImageView;
 import android.widget.TextView;
@@ -65,6 +68,12 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
       
       /** Send a request to claim the ANT Interface. */
       MENU_REQUEST_CLAIM_INTERFACE,
+      
+      /** Start/stop the background scan menu item. */
+      MENU_SCAN,
+      
+      /** Log a visit to the Geocache in range menu item. */
+      MENU_LOG_VISIT,
    }
    
    /** Displays ANT state. */
@@ -79,12 +88,6 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
    /** Pair to any device. */
    static final short WILDCARD = 0;
    
-   /** The default proximity search bin. */
-   private static final byte DEFAULT_BIN = 7;
-   
-   /** The default event buffering buffer threshold. */
-   private static final short DEFAULT_BUFFER_THRESHOLD = 0;
-   
    /** Device ID valid value range. */
    private static final String mDeviceIdHint = AntDefine.MIN_DEVICE_ID +" - "+ (AntDefine.MAX_DEVICE_ID & 0xFFFF);
    
@@ -93,23 +96,43 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
    
    /** Buffer Threshold valid value range. */
    private static final String mBufferThresholdHint = AntDefine.MIN_BUFFER_THRESHOLD +" - "+ AntDefine.MAX_BUFFER_THRESHOLD;
-
-   /** Shared preferences data filename. */
-   public static final String PREFS_NAME = "ANTDemoPrefs";
    
-   /** Class to manage all the ANT messaging and setup */
-   private AntPlusManager mAntManager;
+   /** Class to manage all the ANT messaging and setup, or its proxy in the :ant process */
+   private AntPlusController mAntManager;
    
    private boolean mBound;
    
+   /** When bindService was called, to time the bind */
+   private long mBindTime;
+   
    private PairingDialog mShownDialog = null;
    
+   /** How often the pairing dialog's list of caches in range is refreshed (ms) */
+   private static final long DEVICE_REFRESH_INTERVAL = 1000;
+   
+   private final Handler mHandler = new Handler();
+   
+   /** The scan channel was opened for the pairing dialog, and closes with it */
+   private boolean mScanForPairing = false;
+   
+   private final Runnable mRefreshDevices = new Runnable()
+   {
+       public void run()
+       {
+           if(mShownDialog == null || mShownDialog.getId() != PairingDialog.GEO_ID || mAntManager == null)
+               return;
+           mShownDialog.setScannedDevices(mAntManager.getScannedDevices());
+           mHandler.postDelayed(this, DEVICE_REFRESH_INTERVAL);
+       }
+   };
+   
    private final ServiceConnection mConnection = new ServiceConnection()
    {
         @Override
         public void onServiceDisconnected(ComponentName name)
         {
-            //This is very unlikely to happen with a local service (ie. one in the same process)
+            //This is very unlikely to happen with a local service (ie. one in the same process),
+            //but happens if the :ant process dies.
             mAntManager.setCallbacks(null);
             mAntManager = null;
         }
@@ -117,9 +140,12 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
         @Override
         public void onServiceConnected(ComponentName name, IBinder service)
         {
-            mAntManager = ((ANTPlusService.LocalBinder)service).getManager();
+            if(service instanceof ANTPlusService.LocalBinder)
+                mAntManager = ((ANTPlusService.LocalBinder)service).getManager();
+            else
+                mAntManager = new RemoteAntPlusManager(service);
+            Log.i(TAG, "onServiceConnected: Bound in "+(SystemClock.elapsedRealtime() - mBindTime)+"ms");
             mAntManager.setCallbacks(ANTChirp.this);
-            loadConfiguration();
             notifyAntStateChanged();
             
             if(mShownDialog != null)
@@ -129,6 +155,7 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
                 {
                     case PairingDialog.GEO_ID:
                         mShownDialog.setDeviceNumber(mAntManager.getDeviceNumberGEO());
+                        startDevicePicker();
                         break;
                     case PairingDialog.BUFF_ID:
                         mShownDialog.setDeviceNumber(mAntManager.getBufferThreshold());
@@ -158,12 +185,43 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
 
        Log.d(TAG, "onCreate exit");
    }
+   
+   /**
+    * Rotation is handled here rather than by recreating the activity, which
+    * would unbind from the service and bind again. The layout for the new
+    * orientation is swapped in and redrawn from the manager's state.
+    */
+   @Override
+   public void onConfigurationChanged(Configuration newConfig)
+   {
+       super.onConfigurationChanged(newConfig);
+       final long start = SystemClock.elapsedRealtime();
+       
+       setContentView(R.layout.main);
+       initControls();
+       if(mAntManager != null)
+           drawWindow();
+       
+       final ViewTreeObserver observer = getWindow().getDecorView().getViewTreeObserver();
+       observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener()
+       {
+           public boolean onPreDraw()
+           {
+               if(observer.isAlive())
+                   observer.removeOnPreDrawListener(this);
+               Log.i(TAG, "onConfigurationChanged: Redrawn in "+(SystemClock.elapsedRealtime() - start)+"ms");
+               return true;
+           }
+       });
+   }
 
 
     @Override
     protected void onStart()
     {
-        mBound = bindService(new Intent(this, ANTPlusService.class), mConnection, BIND_AUTO_CREATE);
+        Class<?> serviceClass = getResources().getBoolean(R.bool.ant_process) ? RemoteANTPlusService.class : ANTPlusService.class;
+        mBindTime = SystemClock.elapsedRealtime();
+        mBound = bindService(new Intent(this, serviceClass), mConnection, BIND_AUTO_CREATE);
         super.onStart();
     }
     
@@ -172,7 +230,6 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
     {
         if(mAntManager != null)
         {
-            saveState();
             mAntManager.setCallbacks(null);
         }
         if(mBound)
@@ -193,6 +250,14 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
            if(menu.findItem(MyMenu.MENU_PAIR_GEO.ordinal()) == null)
                menu.add(Menu.NONE, MyMenu.MENU_PAIR_GEO.ordinal(), 0, this.getResources().getString(R.string.Menu_Wildcard_GEO));
 
+           if(menu.findItem(MyMenu.MENU_SCAN.ordinal()) == null)
+               menu.add(Menu.NONE, MyMenu.MENU_SCAN.ordinal(), 1, "");
+           menu.findItem(MyMenu.MENU_SCAN.ordinal()).setTitle(mAntManager.isScanning() ? R.string.Menu_Stop_Scan : R.string.Menu_Scan);
+
+           if(menu.findItem(MyMenu.MENU_LOG_VISIT.ordinal()) == null)
+               menu.add(Menu.NONE, MyMenu.MENU_LOG_VISIT.ordinal(), 2, this.getResources().getString(R.string.Menu_Log_Visit));
+           menu.findItem(MyMenu.MENU_LOG_VISIT.ordinal()).setEnabled(mAntManager.getGeoState() == AntPlusManager.ChannelStates.TRACKING_DATA);
+
            if(menu.findItem(MyMenu.MENU_CONFIG.ordinal()) == null)
            {
                SubMenu configMenu = menu.addSubMenu(Menu.NONE, MyMenu.MENU_CONFIG.ordinal(), 3, this.getResources().getString(R.string.Menu_Sensor_Config));
@@ -210,6 +275,12 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
            if(menu.findItem(MyMenu.MENU_PAIR_GEO.ordinal()) != null)
                menu.removeItem(MyMenu.MENU_PAIR_GEO.ordinal());
 
+           if(menu.findItem(MyMenu.MENU_SCAN.ordinal()) != null)
+               menu.removeItem(MyMenu.MENU_SCAN.ordinal());
+
+           if(menu.findItem(MyMenu.MENU_LOG_VISIT.ordinal()) != null)
+               menu.removeItem(MyMenu.MENU_LOG_VISIT.ordinal());
+
            if(menu.findItem(MyMenu.MENU_CONFIG.ordinal()) != null)
            {
                SubMenu configMenu = (SubMenu) menu.getItem(MyMenu.MENU_CONFIG_GEO.ordinal());
@@ -254,6 +325,15 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
          case MENU_REQUEST_CLAIM_INTERFACE:
              mAntManager.tryClaimAnt();
              break;
+         case MENU_SCAN:
+             if(mAntManager.isScanning())
+                 mAntManager.stopScan();
+             else
+                 mAntManager.startScan();
+             break;
+         case MENU_LOG_VISIT:
+             mAntManager.logGeoVisit();
+             break;
          case MENU_CONFIG:
              //fall through to do nothing, as this represents a submenu, not a menu option
          case MENU_NONE:
@@ -312,14 +392,42 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
       public void started(PairingDialog dialog)
       {
           mShownDialog = dialog;
+          if(dialog.getId() == PairingDialog.GEO_ID && mAntManager != null)
+              startDevicePicker();
       }
 
       @Override
       public void stopped()
       {
           mShownDialog = null;
+          stopDevicePicker();
       }
    }
+   
+   /**
+    * Lists the caches the scan channel hears in the pairing dialog,
+    * opening the scan channel for it if it isn't already.
+    */
+   private void startDevicePicker()
+   {
+       if(!mAntManager.isServiceConnected())
+           return;
+       if(!mAntManager.isScanning() && !mScanForPairing)
+       {
+           mAntManager.startScan();
+           mScanForPairing = true;
+       }
+       mHandler.removeCallbacks(mRefreshDevices);
+       mHandler.post(mRefreshDevices);
+   }
+   
+   private void stopDevicePicker()
+   {
+       mHandler.removeCallbacks(mRefreshDevices);
+       if(mScanForPairing && mAntManager != null)
+           mAntManager.stopScan();
+       mScanForPairing = false;
+   }
   
 
    @Override
@@ -352,33 +460,6 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
       }
    }
    
-   /**
-    * Store application persistent data.
-    */
-   private void saveState()
-   {
-      // Save current Channel Id in preferences
-      // We need an Editor object to make changes
-      SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
-      SharedPreferences.Editor editor = settings.edit();
-      editor.putInt("DeviceNumberGEO", mAntManager.getDeviceNumberGEO());
-      editor.putInt("ProximityThreshold", mAntManager.getProximityThreshold());
-      editor.putInt("BufferThreshold", mAntManager.getBufferThreshold());
-      editor.commit();
-   }
-   
-   /**
-    * Retrieve application persistent data.
-    */
-   private void loadConfiguration()
-   {
-      // Restore preferences
-      SharedPreferences settings = getSharedPreferences(PREFS_NAME, 0);
-      mAntManager.setDeviceNumberGEO((short) settings.getInt("DeviceNumberGEO", WILDCARD));
-      mAntManager.setProximityThreshold((byte) settings.getInt("ProximityThreshold", DEFAULT_BIN));
-      mAntManager.setBufferThreshold((short) settings.getInt("BufferThreshold", DEFAULT_BUFFER_THRESHOLD));
-   }
-   
    /**
     * Initialize GUI elements.
     */
@@ -486,7 +567,11 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
                        ((TextView)findViewById(R.id.text_geo_latitude)).setText(""+mAntManager.getGeoLatitude());
                        ((TextView)findViewById(R.id.text_geo_longitude)).setText(""+mAntManager.getGeoLongitude());
                        ((TextView)findViewById(R.id.text_geo_hint)).setText(mAntManager.getGeoHint());
-                       ((TextView)findViewById(R.id.text_geo_logged_visits)).setText(""+mAntManager.getGeoLoggedVisits());
+                       int pendingVisits = mAntManager.getGeoPendingVisits();
+                       if(pendingVisits > 0)
+                           ((TextView)findViewById(R.id.text_geo_logged_visits)).setText(getString(R.string.Visits_Pending, mAntManager.getGeoLoggedVisits(), pendingVisits));
+                       else
+                           ((TextView)findViewById(R.id.text_geo_logged_visits)).setText(""+mAntManager.getGeoLoggedVisits());
                        break;
                }
                break;
@@ -531,7 +616,7 @@ public class ANTChirp extends Activity implements View.OnClickListener, AntPlusM
            return;
        }
         // If no channels are open, reset ANT
-        if (!mAntManager.isChannelOpen(AntPlusManager.GEO_CHANNEL))
+        if (!mAntManager.isChannelOpen(AntPlusManager.GEO_CHANNEL) && !mAntManager.isScanning())
         {
             Log.d(TAG, "onClick: No channels open, reseting ANT");
             // Defer opening the channel until an ANT_RESET has been
@@ -1,11 +1,14 @@
 package com.dtomasiewicz.antchirp;
 
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class ANTPlusService extends Service
@@ -24,14 +27,86 @@ public class ANTPlusService extends Service
     
     private AntPlusManager mManager;
     
+    protected AntPlusManager getManager()
+    {
+        return mManager;
+    }
+    
     public static final int NOTIFICATION_ID = 1;
+    
+    /** Least time between two updates of the notification (ms) */
+    private static final long NOTIFICATION_INTERVAL = 1000;
+    
+    private final Handler mHandler = new Handler();
+    
+    private NotificationManager mNotificationManager;
+    
+    /** Whether the service is in the foreground, showing the notification */
+    private boolean mForeground = false;
+    
+    /** When the notification was first shown, kept so updates don't reorder it */
+    private long mNotificationWhen;
+    
+    /** The text last shown, and when (elapsedRealtime) */
+    private String mNotificationText;
+    private long mNotificationTime = 0;
+    
+    private boolean mNotificationPending = false;
+    
+    private final Runnable mUpdateNotification = new Runnable()
+    {
+        public void run()
+        {
+            mNotificationPending = false;
+            updateNotification();
+        }
+    };
+    
+    /** Refreshes the notification as the channel changes, at most once per NOTIFICATION_INTERVAL */
+    private final AntPlusManager.Callbacks mNotificationCallbacks = new AntPlusManager.Callbacks()
+    {
+        public void errorCallback()
+        {
+            scheduleNotification();
+        }
+        
+        public void notifyAntStateChanged()
+        {
+            scheduleNotification();
+        }
+        
+        public void notifyChannelStateChanged(byte channel)
+        {
+            scheduleNotification();
+        }
+        
+        public void notifyChannelDataChanged(byte channel)
+        {
+            scheduleNotification();
+        }
+    };
+    
+    /** Intent action other apps bind with to get an IGeocacheService */
+    public static final String ACTION_GEOCACHE_SERVICE = "com.dtomasiewicz.antchirp.GEOCACHE_SERVICE";
+    
+    private GeocacheServiceBinder mGeocacheBinder;
 
     @Override
     public IBinder onBind(Intent intent)
     {
+        if(ACTION_GEOCACHE_SERVICE.equals(intent.getAction()))
+            return getGeocacheBinder();
         Log.i(TAG, "First Client bound.");
         return mBinder;
     }
+    
+    protected IBinder getGeocacheBinder()
+    {
+        Log.i(TAG, "Geocache client bound.");
+        if(mGeocacheBinder == null)
+            mGeocacheBinder = new GeocacheServiceBinder(mManager.getGeocacheStore(), new Handler());
+        return mGeocacheBinder;
+    }
 
     @Override
     public void onRebind(Intent intent)
@@ -54,25 +129,99 @@ public class ANTPlusService extends Service
         Log.i(TAG, "Service created.");
         super.onCreate();
         mManager = new AntPlusManager();
+        // Pick up where a killed process left off before anyone binds and draws
+        mManager.restoreState(this);
         mManager.start(this);
+        mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        mManager.addCallbacks(mNotificationCallbacks, null);
     }
 
     @Override
     public void onStart(Intent intent, int startId)
     {
-        Notification notification = new Notification(R.drawable.antplus, getString(R.string.Notify_Started),
-                System.currentTimeMillis());
+        if(!mForeground)
+        {
+            mNotificationWhen = System.currentTimeMillis();
+            mNotificationText = getNotificationText();
+            mNotificationTime = SystemClock.elapsedRealtime();
+            this.startForeground(NOTIFICATION_ID, buildNotification(getString(R.string.Notify_Started), mNotificationText));
+            mForeground = true;
+        }
+        super.onStart(intent, startId);
+    }
+    
+    private Notification buildNotification(String ticker, String text)
+    {
+        Notification notification = new Notification(R.drawable.antplus, ticker, mNotificationWhen);
+        notification.flags |= Notification.FLAG_ONLY_ALERT_ONCE;
         PendingIntent pi = PendingIntent.getActivity(this, 0, new Intent(this, ANTChirp.class),
                 PendingIntent.FLAG_CANCEL_CURRENT);
-        notification.setLatestEventInfo(this, getString(R.string.app_name),
-                getString(R.string.Notify_Started_Body), pi);
-        this.startForeground(NOTIFICATION_ID, notification);
-        super.onStart(intent, startId);
+        notification.setLatestEventInfo(this, getString(R.string.app_name), text, pi);
+        return notification;
+    }
+    
+    /**
+     * Updates the notification NOTIFICATION_INTERVAL after the last update,
+     * or now if that has passed. Changes until then go in the same update.
+     */
+    private void scheduleNotification()
+    {
+        if(!mForeground || mNotificationPending)
+            return;
+        mNotificationPending = true;
+        long wait = mNotificationTime + NOTIFICATION_INTERVAL - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mUpdateNotification, Math.max(wait, 0));
+    }
+    
+    private void updateNotification()
+    {
+        if(mManager == null)
+            return;
+        String text = getNotificationText();
+        if(text.equals(mNotificationText))
+            return; // Nothing new to show
+        mNotificationText = text;
+        mNotificationTime = SystemClock.elapsedRealtime();
+        mNotificationManager.notify(NOTIFICATION_ID, buildNotification(null, text));
+    }
+    
+    /**
+     * @return the Geocache in range, the channel state and pages received
+     */
+    private String getNotificationText()
+    {
+        int state;
+        switch(mManager.getGeoState())
+        {
+            case CLOSED:
+                state = R.string.Notify_Closed;
+                break;
+            case OFFLINE:
+                state = R.string.NoSensor_txt;
+                break;
+            case SEARCHING:
+                state = R.string.Search;
+                break;
+            case PENDING_OPEN:
+                state = R.string.Opening;
+                break;
+            default:
+                state = R.string.Connected;
+                break;
+        }
+        String id = mManager.getGeoID();
+        if(id == null || id.length() == 0)
+            id = getString(R.string.noData);
+        return getString(R.string.Notify_Geo_Body, id, getString(state), mManager.getGeoDecodedPages());
     }
 
     @Override
     public void onDestroy()
     {
+        if(mGeocacheBinder != null)
+            mGeocacheBinder.close();
+        mHandler.removeCallbacks(mUpdateNotification);
+        mManager.removeCallbacks(mNotificationCallbacks);
         mManager.setCallbacks(null);
         mManager.shutDown();
         mManager = null;
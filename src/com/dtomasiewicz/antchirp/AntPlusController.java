@@ -0,0 +1,79 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.List;
+
+import com.dtomasiewicz.antchirp.AntPlusManager.ChannelStates;
+
+/**
+ * What the UI needs from the radio manager, whether it runs in the UI's
+ * process (AntPlusManager itself) or in the :ant process
+ * (RemoteAntPlusManager).
+ */
+public interface AntPlusController
+{
+    public void setCallbacks(AntPlusManager.Callbacks callbacks);
+
+    public boolean isServiceConnected();
+
+    public boolean isEnabled();
+
+    public boolean checkAntState();
+
+    public String getAntStateText();
+
+    public void doEnable();
+
+    public void doDisable();
+
+    public void requestReset();
+
+    public void tryClaimAnt();
+
+    public void setAntConfiguration();
+
+    public void openChannel(byte channel, boolean deferToNextReset);
+
+    public void closeChannel(byte channel);
+
+    public boolean isChannelOpen(byte channel);
+
+    public void clearChannelStates();
+
+    public void startScan();
+
+    public void stopScan();
+
+    public boolean isScanning();
+
+    public List<DeviceTable.Entry> getScannedDevices();
+
+    public short getDeviceNumberGEO();
+
+    public void setDeviceNumberGEO(short deviceNumberGEO);
+
+    public byte getProximityThreshold();
+
+    public void setProximityThreshold(byte proximityThreshold);
+
+    public short getBufferThreshold();
+
+    public void setBufferThreshold(short bufferThreshold);
+
+    public ChannelStates getGeoState();
+
+    public String getGeoID();
+
+    public long getGeoPIN();
+
+    public int getGeoLatitude();
+
+    public int getGeoLongitude();
+
+    public String getGeoHint();
+
+    public int getGeoLoggedVisits();
+
+    public void logGeoVisit();
+
+    public int getGeoPendingVisits();
+}
@@ -1,14 +1,23 @@
 package com.dtomasiewicz.antchirp;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 import android.widget.Toast;
@@ -23,7 +32,7 @@ import com.dsi.ant.AntDefine;
  * This class handles connecting to the AntRadio service, setting up the channels,
  * and processing Ant events.
  */
-public class AntPlusManager {
+public class AntPlusManager implements AntPlusController {
     
     /**
      * Defines the interface needed to work with all call backs this class makes
@@ -61,11 +70,34 @@ public class AntPlusManager {
     /** The ANT channel for the Geocache */
     public static final byte GEO_CHANNEL = (byte) 0;
     
+    /** The ANT channel used for background scanning */
+    public static final byte SCAN_CHANNEL = (byte) 1;
+    
+    /** How long a scanned Geocache stays listed after it was last heard (ms) */
+    private static final long SCAN_EXPIRY = 10000;
+    
+    // Messages AntInterface has no wrapper for, sent with ANTTxMessage
+    /** Lib config message, turns on extended data in received broadcasts */
+    private static final byte MESG_LIB_CONFIG_ID = (byte) 0x6E;
+    
+    /** Lib config flags: channel ID and RSSI */
+    private static final byte LIB_CONFIG_CHANNEL_ID_RSSI = (byte) 0xC0;
+    
+    /** Extended assignment flag enabling background scanning */
+    private static final byte EXT_ASSIGN_BACKGROUND_SCAN = (byte) 0x01;
+    
+    /** Flag byte bits announcing channel ID and RSSI in extended data */
+    private static final byte EXT_FLAG_CHANNEL_ID = (byte) 0x80;
+    private static final byte EXT_FLAG_RSSI = (byte) 0x40;
+    
     /** ANT+ device type for a Geocache */
-    private static final byte GEO_DEVICE_TYPE = 0x13;
+    private static final byte GEO_DEVICE_TYPE = GeocacheDecoder.DEVICE_TYPE;
     
     /** ANT+ channel period for a Geocache */
-    private static final short GEO_PERIOD = 8192;
+    private static final short GEO_PERIOD = GeocacheDecoder.PERIOD;
+    
+    /** Geocache channel period once the record has been read */
+    private static final short GEO_IDLE_PERIOD = GeocacheDecoder.IDLE_PERIOD;
     
     //TODO: This string will eventually be provided by the system or by AntLib
     /** String used to represent ant in the radios list. */
@@ -99,48 +131,266 @@ public class AntPlusManager {
     /** Current state of the Geocache channel */
     private ChannelStates mGeoState = ChannelStates.CLOSED;
     
-    /** Last measured parameters from Geocache device */
-    private String mGeoID = "";
-    private long mGeoPIN = 0;
-    private int mGeoTotalPages = 1;
-    private int mGeoLatitude = 0;
-    private int mGeoLongitude = 0;
-    private String mGeoHint = "";
-    private int mGeoLoggedVisits = 0;
+    /** Decodes pages from the Geocache device and holds the last measured parameters */
+    private final GeocacheDecoder mGeoDecoder = new GeocacheDecoder(new GeocacheDecoder.PageRequester()
+    {
+        public void requestPage(byte page)
+        {
+            requestGeoPage(page);
+        }
+    });
+    
+    /** Every acknowledged transfer on the Geocache channel, one at a time */
+    private final TransmitQueue mGeoTx = new TransmitQueue(new TransmitQueue.Transmitter()
+    {
+        public boolean transmit(byte[] payload)
+        {
+            return transmitGeoPage(payload);
+        }
+    });
+    
+    /** Writes visits logged on this handset back to the cache in range */
+    private final VisitLogWriter mVisitLog = new VisitLogWriter(mGeoDecoder, new VisitLogWriter.Sender()
+    {
+        public void send(byte[] payload, TransmitQueue.Listener listener)
+        {
+            sendGeoPage(payload, listener);
+        }
+    }, new VisitLogWriter.Listener()
+    {
+        public void visitsLogged(String cacheId, int visits, long authToken)
+        {
+            Log.i(TAG, "Logged "+visits+" visits to "+cacheId+", token "+Long.toHexString(authToken));
+            mJournal.appendSynced(cacheId, visits);
+            geoVisitLogDone();
+        }
+
+        public void visitsFailed(String cacheId, int visits)
+        {
+            Log.w(TAG, "Could not log "+visits+" visits to "+cacheId+", keeping them for next time");
+            geoVisitLogDone();
+        }
+    });
+    
+    /** Channel period the Geocache channel is currently receiving at */
+    private short mGeoPeriod = GEO_PERIOD;
+    
+    /** When the Geocache channel first received data, 0 if it hasn't yet (ms) */
+    private long mGeoTrackingStart = 0;
+    
+    /** Time from first data to a complete record, -1 until complete (ms) */
+    private long mGeoRecordTime = -1;
+    
+    /** Messages received on the Geocache channel since the period last changed */
+    private int mGeoRxCount = 0;
+    
+    /** When the Geocache channel period last changed (ms) */
+    private long mGeoRxSince = 0;
+    
+    /** Geocache pages received since the channel opened, and how many of them were repeats */
+    private int mGeoPageCount = 0;
+    private int mGeoRepeatCount = 0;
+    
+    /** Complete Geocache records, for other apps */
+    private final GeocacheStore mGeocacheStore = new GeocacheStore();
+    
+    /** Journal file, in the service's files directory */
+    private static final String JOURNAL_FILE = "geocaches.journal";
+    
+    /** Keeps queued visits and records across restarts, opened in start() */
+    private GeocacheJournal mJournal;
+    
+    // State snapshot, for picking up where we were if the process is killed
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+    private static final String DELTA_FILE = "state.deltas";
+    private static final byte SNAPSHOT_VERSION = 2;
+    
+    /** How long changes collect in the delta log before a new snapshot (ms) */
+    private static final long SNAPSHOT_INTERVAL = 30000;
+    
+    /** Older snapshots restore the settings only, not the channel (ms) */
+    private static final long SNAPSHOT_MAX_AGE = 15 * 60 * 1000;
+    
+    /** Created in restoreState() */
+    private SnapshotStore mSnapshots;
+    
+    private boolean mSnapshotScheduled = false;
+    
+    private final Runnable mSnapshotTask = new Runnable()
+    {
+        public void run()
+        {
+            mSnapshotScheduled = false;
+            writeSnapshot();
+        }
+    };
+    
+    /** Reopen the Geocache channel once we have the ANT interface, as it was open before a restart */
+    private boolean mResumeGeo = false;
+    
+    /** Cold start timing, launch being when the service created the manager */
+    private final StartupTrace mStartup = new StartupTrace(SystemClock.elapsedRealtime());
+    
+    /** The decoder holds pages restored from a snapshot, to keep when the channel opens */
+    private boolean mGeoRestored = false;
+    
+    /** The device the restored pages came from */
+    private short mGeoRestoredDevice;
+    
+    /** Chooses search parameters for the Geocache channel from recent searches */
+    private final SearchScheduler mGeoSearch = new SearchScheduler();
+    
+    /** Runs timers such as search retries, on the thread that created the manager */
+    private final Handler mHandler = new Handler();
+    
+    /** Starts and stops ANTPlusService as channels are used */
+    private ServiceLifecycle mLifecycle;
+    
+    /** Searches for the Geocache again after it timed out */
+    private final Runnable mGeoRetry = new Runnable()
+    {
+        public void run()
+        {
+            if(mGeoState == ChannelStates.OFFLINE)
+            {
+                Log.i(TAG, "Retrying GEO search, attempt "+(mGeoSearch.getFailures()+1));
+                openChannel(GEO_CHANNEL, false);
+            }
+        }
+    };
+    
+    /** Caches the Geocache channel has been opened for to sync visits this session, by device number */
+    private final HashSet<Integer> mAutoSynced = new HashSet<Integer>();
+    
+    /** The user closed the Geocache channel; don't open it behind their back until they open it again */
+    private boolean mGeoClosedByUser = false;
+    
+    /** The Geocache channel is open only to sync visits, not to the paired cache */
+    private boolean mAutoSync = false;
+    
+    /** The paired device number, put back when the sync ends */
+    private short mSyncSavedDevice;
+    
+    /** Ends a visit sync once the writer has nothing left to do */
+    private final Runnable mAutoSyncCheck = new Runnable()
+    {
+        public void run()
+        {
+            if(mAutoSync && !mVisitLog.isBusy())
+            {
+                Log.i(TAG, "Visit sync with GEO device "+(mDeviceNumberGEO & 0xFFFF)+" done, closing channel");
+                endAutoSync();
+                closeGeoChannel();
+            }
+        }
+    };
     
     //Flags used for deferred opening of channels
     /** Flag indicating that opening of the GEO channel was deferred */
     private boolean mDeferredGeoStart = false;
     
+    /** If the background scan channel is open. */
+    private boolean mScanning = false;
+    
+    /** Geocaches heard by the background scan channel. */
+    private final DeviceTable mDeviceTable = new DeviceTable(SCAN_EXPIRY);
+    
+    /** The default proximity search bin. */
+    private static final byte DEFAULT_BIN = 7;
+    
+    /** The default event buffering buffer threshold. */
+    private static final short DEFAULT_BUFFER_THRESHOLD = 0;
+    
     /** GEO device number. */
-    private short mDeviceNumberGEO;
+    private short mDeviceNumberGEO = ANTChirp.WILDCARD;
     
     /** Devices must be within this bin to be found during (proximity) search. */
-    private byte mProximityThreshold;
+    private byte mProximityThreshold = DEFAULT_BIN;
+    
+    /** Channel period the Geocache channel is opened with */
+    private short mGeoChannelPeriod = GEO_PERIOD;
     
     private ChannelConfiguration channelConfig[];
     
-    //TODO You will want to set a separate threshold for screen off and (if desired) screen on.
-    /** Data buffered for event buffering before flush. */
-    private short mBufferThreshold;
+    /** Messages buffered for event buffering before flush, 0 to flush by interval only. */
+    private short mBufferThreshold = DEFAULT_BUFFER_THRESHOLD;
+    
+    /** Settings file, in the service's files directory */
+    private static final String CONFIG_FILE = "settings.bin";
+    
+    /** Where the UI kept the settings before they moved to CONFIG_FILE */
+    private static final String LEGACY_PREFS_NAME = "ANTDemoPrefs";
+    
+    /** Channel and device settings, loaded in the background by start() */
+    private ConfigStore mConfig;
+    
+    /** Set once mConfig has been read; channels aren't resumed before */
+    private boolean mConfigLoaded = false;
+    
+    /** Longest time a message is buffered before flush, in the radio's 10ms units (2s). */
+    private static final short BUFFER_INTERVAL = 200;
+    
+    /** Event buffering interval that never triggers a flush. */
+    private static final short BUFFER_DISABLED = (short) 0xFFFF;
+    
+    /** Event buffering threshold that flushes every message, i.e. no buffering (as ANTDisableEventBuffering). */
+    private static final short BUFFER_NONE = 0;
+    
+    /** Wakeups and latency of received Geocache messages, by delivery mode. */
+    private final DeliveryStats mDeliveryStats = new DeliveryStats(SystemClock.elapsedRealtime());
+    
+    /** Tunes the Geocache channel's proximity bin, starting from mProximityThreshold */
+    private final ProximityTuner mProximityTuner = new ProximityTuner(DEFAULT_BIN);
     
     /** If this application has control of the ANT Interface. */
     private boolean mClaimedAntInterface;
     
-    private static final byte GEO_PAGE_ID = 0; // 5.3
-    private static final byte GEO_PAGE_PIN = 1; // 5.4
-    private static final byte GEO_PAGE_PROG_MIN = 2; // 5.5
-    private static final byte GEO_PAGE_PROG_MAX = 31; // 5.5
-    private static final byte GEO_PAGE_AUTH = 32; // 5.11
+    private Context mContext;
     
-    private static final byte GEO_PROG_LATITUDE = 0; // 5.6
-    private static final byte GEO_PROG_LONGITUDE = 1; // 5.7
-    private static final byte GEO_PROG_HINT = 2; // 5.8
-    private static final byte GEO_PROG_LOGGED_VISITS = 4; // 5.10
+    /** Everyone listening to the manager */
+    private final CallbackFanOut mCallbacks = new CallbackFanOut(mHandler);
     
-    private Context mContext;
+    /** The UI's callbacks, set while it is showing */
+    private Callbacks mUiCallbacks;
+    
+    /** Runs tasks handed over by other threads on mHandler */
+    private final Executor mHandlerExecutor = new Executor()
+    {
+        public void execute(Runnable command)
+        {
+            mHandler.post(command);
+        }
+    };
     
-    private Callbacks mCallbackSink;
+    /** Typed events for consumers that pull at their own pace */
+    private final EventPublisher<GeocacheEvent> mEvents = new EventPublisher<GeocacheEvent>(mHandlerExecutor);
+    
+    /** Geocache channel state last published as an event */
+    private ChannelStates mPublishedGeoState = ChannelStates.CLOSED;
+    
+    /** Turns channel state callbacks into CHANNEL_STATE events for actual transitions */
+    private final Callbacks mStateEvents = new Callbacks()
+    {
+        public void errorCallback()
+        {
+        }
+        
+        public void notifyAntStateChanged()
+        {
+        }
+        
+        public void notifyChannelStateChanged(byte channel)
+        {
+            if(channel != GEO_CHANNEL || mGeoState == mPublishedGeoState)
+                return;
+            mPublishedGeoState = mGeoState;
+            mEvents.publish(GeocacheEvent.channelState(SystemClock.elapsedRealtime(), GEO_CHANNEL, mGeoState));
+        }
+        
+        public void notifyChannelDataChanged(byte channel)
+        {
+        }
+    };
     
     /**
      * Default Constructor
@@ -154,6 +404,8 @@ public class AntPlusManager {
         //Set initial state values
         mGeoState = ChannelStates.CLOSED;
         channelConfig[GEO_CHANNEL] = new ChannelConfiguration();
+        channelConfig[SCAN_CHANNEL] = new ChannelConfiguration();
+        mCallbacks.add(mStateEvents, null);
         
         mClaimedAntInterface = false;
         
@@ -179,6 +431,9 @@ public class AntPlusManager {
         boolean initialised = false;
         
         mContext = context;
+        mLifecycle = new ServiceLifecycle(context, mHandler);
+        // The settings are read in the background while the ANT service binds
+        loadConfig();
         
         if(AntInterface.hasAntSupport(mContext))
         {
@@ -214,6 +469,9 @@ public class AntPlusManager {
             }
         }
         
+        // Read while the bind is on its way
+        openJournal();
+        
         return initialised;
     }
     
@@ -228,9 +486,38 @@ public class AntPlusManager {
         AntInterface.goToMarket(mContext);
     }
     
+    /**
+     * Sets the UI's callbacks, replacing the previous UI's, or clears them
+     * with null. While set, received data is delivered without buffering.
+     */
     public void setCallbacks(Callbacks callbacks)
     {
-        mCallbackSink = callbacks;
+        if(callbacks == mUiCallbacks)
+            return;
+        boolean visibilityChanged = (callbacks == null) != (mUiCallbacks == null);
+        if(mUiCallbacks != null)
+            mCallbacks.remove(mUiCallbacks);
+        mUiCallbacks = callbacks;
+        if(callbacks != null)
+            mCallbacks.add(callbacks, null);
+        // Deliver immediately only while someone is showing the data
+        if(visibilityChanged)
+            setAntConfiguration();
+    }
+    
+    /**
+     * Adds a subscriber besides the UI, e.g. a logger or notification updater.
+     *
+     * @param handler the Handler to call back on, or null for the manager's thread
+     */
+    public void addCallbacks(Callbacks callbacks, Handler handler)
+    {
+        mCallbacks.add(callbacks, handler);
+    }
+    
+    public void removeCallbacks(Callbacks callbacks)
+    {
+        mCallbacks.remove(callbacks);
     }
     
     //Getters and setters
@@ -247,7 +534,10 @@ public class AntPlusManager {
 
     public void setDeviceNumberGEO(short deviceNumberGEO)
     {
+        // Chosen by the user, so it stays when a visit sync ends
+        mAutoSync = false;
         this.mDeviceNumberGEO = deviceNumberGEO;
+        saveGeoConfig();
     }
     
     public byte getProximityThreshold()
@@ -258,6 +548,33 @@ public class AntPlusManager {
     public void setProximityThreshold(byte proximityThreshold)
     {
         this.mProximityThreshold = proximityThreshold;
+        mProximityTuner.setBase(proximityThreshold);
+        saveGeoConfig();
+    }
+
+    /**
+     * Channel state transitions, decoded pages, complete records and errors.
+     * Subscribe with EventPublisher.Overflow.LATEST to show current state,
+     * BUFFER to log everything.
+     */
+    public EventPublisher<GeocacheEvent> getEvents()
+    {
+        return mEvents;
+    }
+
+    public GeocacheStore getGeocacheStore()
+    {
+        return mGeocacheStore;
+    }
+
+    public ProximityTuner getProximityTuner()
+    {
+        return mProximityTuner;
+    }
+    
+    public DeliveryStats getDeliveryStats()
+    {
+        return mDeliveryStats;
     }
 
     public short getBufferThreshold()
@@ -268,6 +585,48 @@ public class AntPlusManager {
     public void setBufferThreshold(short bufferThreshold)
     {
         this.mBufferThreshold = bufferThreshold;
+        mConfig.putBufferThreshold(bufferThreshold);
+    }
+
+    /**
+     * @return time from first data to a complete Geocache record, or -1 if not complete yet (ms)
+     */
+    public long getGeoRecordTime()
+    {
+        return mGeoRecordTime;
+    }
+    
+    /**
+     * Rate of messages received on the Geocache channel at its current
+     * period. Each one is a receive window, so this tracks the radio's duty
+     * cycle: 4 per second while downloading, 1 per second once idle.
+     *
+     * @return messages per second
+     */
+    public float getGeoRxRate()
+    {
+        long elapsed = SystemClock.elapsedRealtime() - mGeoRxSince;
+        if(elapsed <= 0)
+            return 0;
+        return mGeoRxCount * 1000f / elapsed;
+    }
+
+    public boolean isScanning()
+    {
+        return mScanning;
+    }
+    
+    public DeviceTable getDeviceTable()
+    {
+        return mDeviceTable;
+    }
+    
+    /**
+     * @return the Geocaches the scan channel hears, strongest first
+     */
+    public List<DeviceTable.Entry> getScannedDevices()
+    {
+        return mDeviceTable.snapshot(SystemClock.elapsedRealtime());
     }
 
     public ChannelStates getGeoState()
@@ -276,27 +635,61 @@ public class AntPlusManager {
     }
     
     public String getGeoID() {
-    	return mGeoID;
+    	return mGeoDecoder.getID();
+    }
+    
+    /** @return different Geocache pages decoded, which stops changing once the record is complete */
+    public int getGeoDecodedPages() {
+    	return mGeoDecoder.getReceivedPageCount();
     }
     
     public long getGeoPIN() {
-    	return mGeoPIN;
+    	return mGeoDecoder.getPIN();
     }
     
     public int getGeoLatitude() {
-    	return mGeoLatitude;
+    	return mGeoDecoder.getLatitude();
     }
     
     public int getGeoLongitude() {
-    	return mGeoLongitude;
+    	return mGeoDecoder.getLongitude();
     }
     
     public String getGeoHint() {
-    	return mGeoHint;
+    	return mGeoDecoder.getHint();
     }
     
     public int getGeoLoggedVisits() {
-    	return mGeoLoggedVisits;
+    	return mGeoDecoder.getLoggedVisits();
+    }
+    
+    /**
+     * Logs a visit to the cache in range. It is written back to the cache
+     * along with any other visits queued for it.
+     */
+    public void logGeoVisit() {
+    	if(!mGeoDecoder.hasPage(GeocacheDecoder.PAGE_ID))
+    		return;
+    	long now = System.currentTimeMillis();
+    	mVisitLog.logVisit(mGeoDecoder.getID(), mDeviceNumberGEO & 0xFFFF, now);
+    	mJournal.appendVisit(mGeoDecoder.getID(), mDeviceNumberGEO & 0xFFFF, now);
+    	mCallbacks.notifyChannelDataChanged(GEO_CHANNEL);
+    }
+    
+    /**
+     * @return visits to the cache in range not yet written to it
+     */
+    public int getGeoPendingVisits() {
+    	return mVisitLog.getPending(mGeoDecoder.getID());
+    }
+    
+    /**
+     * @param field one of the GeocacheDecoder.FIELD_x constants
+     * @return a number that changes whenever the field does, so a UI can
+     *         skip redrawing what hasn't
+     */
+    public int getGeoFieldVersion(int field) {
+    	return mGeoDecoder.getFieldVersion(field);
     }
 
     public String getAntStateText()
@@ -387,6 +780,17 @@ public class AntPlusManager {
      */
     public void shutDown()
     {
+        mHandler.removeCallbacks(mSnapshotTask);
+        writeSnapshot();
+        mSnapshots.close();
+        mConfig.close();
+        mJournal.close();
+        Log.i(TAG, "shutDown: Journal wrote "+mJournal.getEntryCount()+" entries in "+mJournal.getCommitCount()+" commits");
+        if(mJournal.getError() != null)
+            Log.e(TAG, "shutDown: Journal write failed", mJournal.getError());
+        mEvents.complete();
+        mLifecycle.cancel();
+        mHandler.removeCallbacks(mGeoRetry);
         try
         {
             mContext.unregisterReceiver(mAntStatusReceiver);
@@ -434,6 +838,7 @@ public class AntPlusManager {
             Log.d(TAG, "mAntServiceListener onServiceConnected()");
 
             mServiceConnected = true;
+            mStartup.mark("service", SystemClock.elapsedRealtime());
 
             try
             {
@@ -456,9 +861,10 @@ public class AntPlusManager {
                 antError();
             }
 
+            resumeChannels();
+
             Log.d(TAG, "mAntServiceListener Displaying icons only if radio enabled");
-            if(mCallbackSink != null)
-                mCallbackSink.notifyAntStateChanged();
+            mCallbacks.notifyAntStateChanged();
         }
 
         public void onServiceDisconnected()
@@ -474,8 +880,7 @@ public class AntPlusManager {
                 receiveAntRxMessages(false);
             }
 
-            if(mCallbackSink != null)
-                mCallbackSink.notifyAntStateChanged();
+            mCallbacks.notifyAntStateChanged();
         }
     };
     
@@ -491,16 +896,28 @@ public class AntPlusManager {
                 try
                 {
                     // Event Buffering Configuration
-                    if(mBufferThreshold > 0)
+                    // ANTConfigEventBuffering(screenOnInterval, screenOnThreshold, screenOffInterval, screenOffThreshold):
+                    // intervals are in 10ms units, 0xFFFF never flushing on time; thresholds count
+                    // messages, 0 flushing each one as it arrives and 0xFFFF never flushing on count.
+                    // Flush after BUFFER_INTERVAL or mBufferThreshold messages, whichever comes first.
+                    // Screen off is always buffered; screen on only while no UI is showing the data.
+                    short threshold = mBufferThreshold > 0 ? mBufferThreshold : BUFFER_DISABLED;
+                    long now = SystemClock.elapsedRealtime();
+                    if(mUiCallbacks != null)
                     {
-                        //TODO For easy demonstration will set screen on and screen off thresholds to the same value.
-                        // No buffering by interval here.
-                        mAntReceiver.ANTConfigEventBuffering((short)0xFFFF, mBufferThreshold, (short)0xFFFF, mBufferThreshold);
+                        mAntReceiver.ANTConfigEventBuffering(BUFFER_DISABLED, BUFFER_NONE, BUFFER_INTERVAL, threshold);
+                        mDeliveryStats.setMode(DeliveryStats.IMMEDIATE, now);
                     }
                     else
                     {
-                        mAntReceiver.ANTDisableEventBuffering();
+                        mAntReceiver.ANTConfigEventBuffering(BUFFER_INTERVAL, threshold, BUFFER_INTERVAL, threshold);
+                        mDeliveryStats.setMode(DeliveryStats.BUFFERED, now);
                     }
+                    Log.i(TAG, "setAntConfiguration: immediate "
+                            +mDeliveryStats.getWakeupsPerMinute(DeliveryStats.IMMEDIATE, now)+" wakeups/min, "
+                            +mDeliveryStats.getMeanLatency(DeliveryStats.IMMEDIATE)+"ms latency; buffered "
+                            +mDeliveryStats.getWakeupsPerMinute(DeliveryStats.BUFFERED, now)+" wakeups/min, "
+                            +mDeliveryStats.getMeanLatency(DeliveryStats.BUFFERED)+"ms latency");
                 }
                 catch(AntInterfaceException e)
                 {
@@ -523,8 +940,9 @@ public class AntPlusManager {
     private void antError()
     {
         mAntStateText = mContext.getString(R.string.Text_ANT_Error);
-        if(mCallbackSink != null)
-            mCallbackSink.errorCallback();
+        mCallbacks.errorCallback();
+        if(mEvents.hasSubscribers())
+            mEvents.publish(GeocacheEvent.error(SystemClock.elapsedRealtime(), mAntStateText));
     }
     
     /**
@@ -534,27 +952,76 @@ public class AntPlusManager {
      */
     public void openChannel(byte channel, boolean deferToNextReset)
     {
-        Log.i(TAG, "Starting service.");
-        mContext.startService(new Intent(mContext, ANTPlusService.class));
+        mLifecycle.setActive(channel, true);
         if (!deferToNextReset)
         {
             channelConfig[channel].deviceNumber = 0;
             channelConfig[channel].deviceType = 0;
             channelConfig[channel].TransmissionType = 0; // Set to 0 for wild card search
             channelConfig[channel].period = 0;
-            channelConfig[channel].freq = 57; // 2457Mhz (ANT+ frequency)
+            channelConfig[channel].freq = GeocacheDecoder.RF_FREQ; // 2457Mhz (ANT+ frequency)
             channelConfig[channel].proxSearch = mProximityThreshold;
+            channelConfig[channel].searchTimeout = 0;
+            channelConfig[channel].lowPrioritySearchTimeout = 12;
+            channelConfig[channel].backgroundScan = false;
             switch (channel)
             {
                 case GEO_CHANNEL:
+                    if(!mAutoSync)
+                        mGeoClosedByUser = false;
+                    if(mDeviceNumberGEO == ANTChirp.WILDCARD && mScanning)
+                    {
+                        // Go straight to the strongest cache the scan has heard instead of a wildcard search
+                        DeviceTable.Entry strongest = mDeviceTable.strongest(SystemClock.elapsedRealtime());
+                        if(strongest != null)
+                        {
+                            Log.i(TAG, "openChannel: Using scanned GEO device number ("+(strongest.deviceNumber & 0xFFFF)+")");
+                            mDeviceNumberGEO = strongest.deviceNumber;
+                        }
+                    }
                     channelConfig[channel].deviceNumber = mDeviceNumberGEO;
                     channelConfig[channel].deviceType = GEO_DEVICE_TYPE;
-                    channelConfig[channel].period = GEO_PERIOD;
+                    channelConfig[channel].period = mGeoChannelPeriod;
+                    mProximityTuner.lockEnded();
+                    if(mDeviceNumberGEO == ANTChirp.WILDCARD)
+                    {
+                        // The radio only gets a bin for a wildcard search, so only those are tuned
+                        channelConfig[channel].proxSearch = mGeoSearch.getProximityBin(mProximityTuner.getBin());
+                        Log.i(TAG, "openChannel: GEO proximity bin "+channelConfig[channel].proxSearch+" ("+mProximityTuner+")");
+                    }
+                    else
+                    {
+                        channelConfig[channel].proxSearch = 0;
+                    }
+                    channelConfig[channel].searchTimeout = mGeoSearch.getSearchTimeout();
+                    channelConfig[channel].lowPrioritySearchTimeout = mGeoSearch.getLowPrioritySearchTimeout();
+                    mHandler.removeCallbacks(mGeoRetry);
+                    if(mGeoRestored && mDeviceNumberGEO == mGeoRestoredDevice)
+                    {
+                        // Carry on with the pages read before the process was restarted
+                        mGeoRestored = false;
+                        mGeoRecordTime = mGeoDecoder.isComplete() ? 0 : -1;
+                    }
+                    else
+                    {
+                        mGeoRestored = false;
+                        mGeoDecoder.reset();
+                        mGeoRecordTime = -1;
+                    }
+                    mVisitLog.reset();
+                    mGeoTx.clear();
+                    mGeoPeriod = mGeoChannelPeriod;
+                    mGeoTrackingStart = 0;
+                    mGeoRxCount = 0;
+                    mGeoRxSince = SystemClock.elapsedRealtime();
+                    mGeoPageCount = 0;
+                    mGeoRepeatCount = 0;
                     mGeoState = ChannelStates.PENDING_OPEN;
+                    // Start a new delta log for this channel's pages
+                    writeSnapshot();
                     break;
             }
-            if(mCallbackSink != null)
-                mCallbackSink.notifyChannelStateChanged(channel);
+            mCallbacks.notifyChannelStateChanged(channel);
             // Configure and open channel
             antChannelSetup(
                     (byte) 0x01, // Network: 1 (ANT+)
@@ -578,6 +1045,25 @@ public class AntPlusManager {
      * @param channel The channel to close.
      */
     public void closeChannel(byte channel)
+    {
+        if(channel == GEO_CHANNEL)
+        {
+            mGeoClosedByUser = true;
+            endAutoSync();
+        }
+        closeChannelNow(channel);
+    }
+    
+    /**
+     * Closes the Geocache channel when the manager is done with it, as
+     * opposed to the user closing it.
+     */
+    private void closeGeoChannel()
+    {
+        closeChannelNow(GEO_CHANNEL);
+    }
+    
+    private void closeChannelNow(byte channel)
     {
         channelConfig[channel].isInitializing = false;
         channelConfig[channel].isDeinitializing = true;
@@ -586,10 +1072,13 @@ public class AntPlusManager {
         {
             case GEO_CHANNEL:
                 mGeoState = ChannelStates.CLOSED;
+                mHandler.removeCallbacks(mGeoRetry);
+                mGeoTx.clear();
+                mProximityTuner.lockEnded();
+                scheduleSnapshot();
                 break;
         }
-        if(mCallbackSink != null)
-            mCallbackSink.notifyChannelStateChanged(channel);
+        mCallbacks.notifyChannelStateChanged(channel);
         try
         {
            mAntReceiver.ANTCloseChannel(channel);
@@ -600,11 +1089,81 @@ public class AntPlusManager {
            Log.w(TAG, "closeChannel: could not cleanly close channel " + channel + ".");
            antError();
         }
-        if(mGeoState == ChannelStates.CLOSED || mGeoState == ChannelStates.OFFLINE)
+        mLifecycle.setActive(channel, false);
+    }
+    
+    /**
+     * Opens the background scan channel, which receives broadcasts from every
+     * Geocache in range without locking on to any of them. What it hears is
+     * kept in the device table, from which the Geocache channel is paired.
+     */
+    public void startScan()
+    {
+        if(mScanning)
+            return;
+        mLifecycle.setActive(SCAN_CHANNEL, true);
+        
+        mDeviceTable.clear();
+        ChannelConfiguration config = channelConfig[SCAN_CHANNEL];
+        config.deviceNumber = ANTChirp.WILDCARD;
+        config.deviceType = GEO_DEVICE_TYPE;
+        config.TransmissionType = 0;
+        config.period = GEO_PERIOD;
+        config.freq = GeocacheDecoder.RF_FREQ;
+        config.proxSearch = 0; // Hear every cache in range, not just the closest
+        config.searchTimeout = 0;
+        config.lowPrioritySearchTimeout = (byte) 0xFF; // Never time out
+        config.backgroundScan = true;
+        
+        try
+        {
+            // Have broadcasts carry the sender's device number and RSSI
+            mAntReceiver.ANTTxMessage(new byte[] {2, MESG_LIB_CONFIG_ID, 0, LIB_CONFIG_CHANNEL_ID_RSSI});
+        }
+        catch(AntInterfaceException e)
+        {
+            antError();
+            mLifecycle.setActive(SCAN_CHANNEL, false);
+            return;
+        }
+        mScanning = true;
+        antChannelSetup((byte) 0x01, SCAN_CHANNEL);
+    }
+    
+    /**
+     * Closes the background scan channel.
+     */
+    public void stopScan()
+    {
+        if(!mScanning)
+            return;
+        mScanning = false;
+        mDeviceTable.clear();
+        channelConfig[SCAN_CHANNEL].isInitializing = false;
+        channelConfig[SCAN_CHANNEL].isDeinitializing = true;
+        try
         {
-            Log.i(TAG, "Stopping service.");
-            mContext.stopService(new Intent(mContext, ANTPlusService.class));
+            mAntReceiver.ANTCloseChannel(SCAN_CHANNEL);
         }
+        catch(AntInterfaceException e)
+        {
+            Log.w(TAG, "stopScan: could not cleanly close scan channel.");
+            antError();
+        }
+        mLifecycle.setActive(SCAN_CHANNEL, false);
+    }
+    
+    /**
+     * Forgets the scan channel after the radio has dropped it, e.g. on a
+     * reset, so that it isn't reported open or closed again.
+     */
+    private void scanDropped()
+    {
+        if(!mScanning)
+            return;
+        mScanning = false;
+        mDeviceTable.clear();
+        mCallbacks.notifyChannelStateChanged(SCAN_CHANNEL);
     }
     
     /**
@@ -612,13 +1171,10 @@ public class AntPlusManager {
      */
     public void clearChannelStates()
     {
-        Log.i(TAG, "Stopping service.");
-        mContext.stopService(new Intent(mContext, ANTPlusService.class));
+        mLifecycle.releaseAll();
         mGeoState = ChannelStates.CLOSED;
-        if(mCallbackSink != null)
-        {
-            mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
-        }
+        mScanning = false;
+        mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
     }
     
     /** check to see if a channel is open */
@@ -630,6 +1186,8 @@ public class AntPlusManager {
                 if(mGeoState == ChannelStates.CLOSED || mGeoState == ChannelStates.OFFLINE)
                     return false;
                 break;
+            case SCAN_CHANNEL:
+                return mScanning;
             default:
                 return false;
         }
@@ -652,8 +1210,7 @@ public class AntPlusManager {
             {
                 mDeferredGeoStart = false;
                 mGeoState = ChannelStates.CLOSED;
-                if(mCallbackSink != null)
-                    mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
+                mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
             }
         }
     }
@@ -726,8 +1283,7 @@ public class AntPlusManager {
               mEnabling = true;
               mDisabling = false;
               mAntStateText = mContext.getString(R.string.Text_Enabling);
-              if(mCallbackSink != null)
-                  mCallbackSink.notifyAntStateChanged();
+              mCallbacks.notifyAntStateChanged();
           }
           else if (ANTAction.equals(AntInterfaceIntent.ANT_ENABLED_ACTION)) 
           {
@@ -735,8 +1291,8 @@ public class AntPlusManager {
              
              mEnabling = false;
              mDisabling = false;
-             if(mCallbackSink != null)
-                 mCallbackSink.notifyAntStateChanged();
+             mCallbacks.notifyAntStateChanged();
+             resumeChannels();
           }
           else if (ANTAction.equals(AntInterfaceIntent.ANT_DISABLING_ACTION))
           {
@@ -744,48 +1300,47 @@ public class AntPlusManager {
               mEnabling = false;
               mDisabling = true;
               mAntStateText = mContext.getString(R.string.Text_Disabling);
-              if(mCallbackSink != null)
-                  mCallbackSink.notifyAntStateChanged();
+              mCallbacks.notifyAntStateChanged();
           }
           else if (ANTAction.equals(AntInterfaceIntent.ANT_DISABLED_ACTION)) 
           {
              Log.i(TAG, "onReceive: ANT DISABLED");
              mGeoState = ChannelStates.CLOSED;
+             mScanning = false;
              mAntStateText = mContext.getString(R.string.Text_Disabled);
              
              mEnabling = false;
              mDisabling = false;
              
-             if(mCallbackSink != null)
-             {
-                 mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
-                 mCallbackSink.notifyAntStateChanged();
-             }
-             Log.i(TAG, "Stopping service.");
-             mContext.stopService(new Intent(mContext, ANTPlusService.class));
+             mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
+             mCallbacks.notifyAntStateChanged();
+             mLifecycle.releaseAll();
           }
           else if (ANTAction.equals(AntInterfaceIntent.ANT_RESET_ACTION))
           {
              Log.d(TAG, "onReceive: ANT RESET");
              
-             Log.i(TAG, "Stopping service.");
-             mContext.stopService(new Intent(mContext, ANTPlusService.class));
+             // A channel opened after our own reset takes the service back within the grace period
+             mLifecycle.releaseAll();
              
              if(false == mAntResetSent)
              {
                 //Someone else triggered an ANT reset
                 Log.d(TAG, "onReceive: ANT RESET: Resetting state");
                 
+                scanDropped();
                 if(mGeoState != ChannelStates.CLOSED)
                 {
                    mGeoState = ChannelStates.CLOSED;
-                   if(mCallbackSink != null)
-                       mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
+                   mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
                 }
              }
              else
              {
                 mAntResetSent = false;
+                mStartup.mark("reset", SystemClock.elapsedRealtime());
+                boolean wasScanning = mScanning;
+                scanDropped();
                 //Reconfigure event buffering
                 setAntConfiguration();
                 //Check if opening a channel was deferred, if so open it now.
@@ -794,6 +1349,9 @@ public class AntPlusManager {
                     openChannel(GEO_CHANNEL, false);
                     mDeferredGeoStart = false;
                 }
+                //Our reset took the scan channel down with it, so open it again
+                if(wasScanning)
+                    startScan();
              }
           }
           else if (ANTAction.equals(AntInterfaceIntent.ANT_INTERFACE_CLAIMED_ACTION)) 
@@ -812,6 +1370,7 @@ public class AntPlusManager {
                      Log.i(TAG, "onReceive: ANT Interface claimed");
 
                      receiveAntRxMessages(true);
+                     resumeChannels();
                  }
                  else
                  {
@@ -821,14 +1380,12 @@ public class AntPlusManager {
                          // ...and we had control before that.  
                          Log.i(TAG, "onReceive: ANT Interface released");
                          
-                         Log.i(TAG, "Stopping service.");
-                         mContext.stopService(new Intent(mContext, ANTPlusService.class));
+                         mLifecycle.releaseAll();
 
                          receiveAntRxMessages(false);
                          
                          mAntStateText = mContext.getString(R.string.Text_ANT_In_Use);
-                         if(mCallbackSink != null)
-                             mCallbackSink.notifyAntStateChanged();
+                         mCallbacks.notifyAntStateChanged();
                      }
                  }
              }
@@ -843,25 +1400,20 @@ public class AntPlusManager {
               if(isAirPlaneModeOn())
               {
                   mGeoState = ChannelStates.CLOSED;
+                  mScanning = false;
                   mAntStateText = mContext.getString(R.string.Text_Airplane_Mode);
                   
-                  Log.i(TAG, "Stopping service.");
-                  mContext.stopService(new Intent(mContext, ANTPlusService.class));
+                  mLifecycle.releaseAll();
                   
-                  if(mCallbackSink != null)
-                  {
-                      mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
-                      mCallbackSink.notifyAntStateChanged();
-                  }
+                  mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
+                  mCallbacks.notifyAntStateChanged();
               }
               else
               {
-                  if(mCallbackSink != null)
-                      mCallbackSink.notifyAntStateChanged();
+                  mCallbacks.notifyAntStateChanged();
               }
           }
-          if(mCallbackSink != null)
-              mCallbackSink.notifyAntStateChanged();
+          mCallbacks.notifyAntStateChanged();
        }
     };
     
@@ -912,6 +1464,9 @@ public class AntPlusManager {
                          case GEO_CHANNEL:
                              antDecodeGEO(ANTRxMessage);
                              break;
+                         case SCAN_CHANNEL:
+                             antDecodeScan(ANTRxMessage);
+                             break;
                      }
                      break;
                  case AntMesg.MESG_BURST_DATA_ID:
@@ -928,6 +1483,9 @@ public class AntPlusManager {
                          case GEO_CHANNEL:
                              Log.i(TAG, "onRecieve: Received GEO device number ("+deviceNum+")");
                              mDeviceNumberGEO = deviceNum;
+                             if(!mAutoSync)
+                                 saveGeoConfig();
+                             scheduleSnapshot();
                              break;
                      }
                      break;
@@ -957,6 +1515,21 @@ public class AntPlusManager {
            // see ANT Message Protocol and Usage section 9.5.6.1
            // available from thisisant.com
            byte channelNumber = ANTRxMessage[AntMesg.MESG_DATA_OFFSET];
+           
+           if (channelNumber == GEO_CHANNEL && ANTRxMessage[AntMesg.MESG_DATA_OFFSET + 1] == AntMesg.MESG_EVENT_ID)
+           {
+               // Outcome of the acknowledged page in flight, goes to whoever queued it
+               if (ANTRxMessage[AntMesg.MESG_DATA_OFFSET + 2] == AntDefine.EVENT_TRANSFER_TX_COMPLETED)
+               {
+                   mGeoTx.onCompleted();
+                   idleGeoIfDone();
+               }
+               else if (ANTRxMessage[AntMesg.MESG_DATA_OFFSET + 2] == AntDefine.EVENT_TRANSFER_TX_FAILED)
+               {
+                   mGeoTx.onFailed();
+                   idleGeoIfDone();
+               }
+           }
 
            if ((ANTRxMessage[AntMesg.MESG_DATA_OFFSET + 1] == AntMesg.MESG_EVENT_ID) && (ANTRxMessage[AntMesg.MESG_DATA_OFFSET + 2] == AntDefine.EVENT_RX_SEARCH_TIMEOUT))
            {
@@ -971,10 +1544,27 @@ public class AntPlusManager {
                        {
                            Log.i(TAG, "responseEventHandler: Received search timeout on GEO channel");
 
+                           mGeoTx.clear();
+                           if(mAutoSync)
+                           {
+                               // The cache has gone again; its visits wait for the next session
+                               endAutoSync();
+                               mGeoState = ChannelStates.CLOSED;
+                               mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
+                               mAntReceiver.ANTUnassignChannel(GEO_CHANNEL);
+                               mProximityTuner.lockEnded();
+                               break;
+                           }
                            mGeoState = ChannelStates.OFFLINE;
-                           if(mCallbackSink != null)
-                               mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
+                           mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
                            mAntReceiver.ANTUnassignChannel(GEO_CHANNEL);
+                           
+                           // Try again later, backing off while nothing is found
+                           mGeoSearch.searchTimedOut();
+                           if(isGeoWildcardSearch())
+                               mProximityTuner.searchTimedOut(SystemClock.elapsedRealtime());
+                           Log.i(TAG, "responseEventHandler: Retrying GEO search in "+mGeoSearch.getRetryDelay()+"ms");
+                           mHandler.postDelayed(mGeoRetry, mGeoSearch.getRetryDelay());
                        }
                        catch(AntInterfaceException e)
                        {
@@ -982,11 +1572,7 @@ public class AntPlusManager {
                        }
                        break;
                }
-               if(mGeoState == ChannelStates.CLOSED || mGeoState == ChannelStates.OFFLINE)
-               {
-                   Log.i(TAG, "Stopping service.");
-                   mContext.stopService(new Intent(mContext, ANTPlusService.class));
-               }
+               // An OFFLINE Geocache channel will be retried, so it stays active
            }
            
            if (channelConfig[channelNumber].isInitializing)
@@ -1032,7 +1618,7 @@ public class AntPlusManager {
                        case AntMesg.MESG_CHANNEL_RADIO_FREQ_ID:
                            try
                            {
-                               mAntReceiver.ANTSetChannelSearchTimeout(channelNumber, (byte)0); // Disable high priority search
+                               mAntReceiver.ANTSetChannelSearchTimeout(channelNumber, channelConfig[channelNumber].searchTimeout); // 0 disables high priority search
                            }
                            catch (AntInterfaceException e)
                            {
@@ -1042,7 +1628,7 @@ public class AntPlusManager {
                        case AntMesg.MESG_CHANNEL_SEARCH_TIMEOUT_ID:
                            try
                            {
-                               mAntReceiver.ANTSetLowPriorityChannelSearchTimeout(channelNumber,(byte) 12); // Set search timeout to 30 seconds (low priority search)
+                               mAntReceiver.ANTSetLowPriorityChannelSearchTimeout(channelNumber, channelConfig[channelNumber].lowPrioritySearchTimeout); // 12 = 30 seconds (low priority search)
                            }
                            catch (AntInterfaceException e)
                            {
@@ -1089,8 +1675,11 @@ public class AntPlusManager {
                            {
                                case GEO_CHANNEL:
                                    mGeoState = ChannelStates.SEARCHING;
-                                   if(mCallbackSink != null)
-                                       mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
+                                   mGeoSearch.searchStarted(SystemClock.elapsedRealtime());
+                                   mStartup.mark("search", SystemClock.elapsedRealtime());
+                                   if(isGeoWildcardSearch())
+                                       mProximityTuner.searchStarted(channelConfig[GEO_CHANNEL].proxSearch, SystemClock.elapsedRealtime());
+                                   mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
                                    break;
                            }
                    }
@@ -1127,13 +1716,37 @@ public class AntPlusManager {
           
          Log.d(TAG, "antDecodeGEO: Received broadcast");
          
-         if(mGeoState != ChannelStates.CLOSED)
+         long now = SystemClock.elapsedRealtime();
+         mGeoRxCount++;
+         mDeliveryStats.onMessage(now, (mGeoPeriod & 0xFFFF) * 1000L / 32768);
+         if(mGeoTrackingStart == 0)
+             mGeoTrackingStart = now;
+         
+         if(mGeoState == ChannelStates.SEARCHING)
+         {
+            mGeoSearch.deviceFound(now);
+            if(isGeoWildcardSearch())
+            {
+                // The scan channel, if open, measured the cache's signal
+                mProximityTuner.deviceFound(now, mDeviceTable.getRssi(mDeviceNumberGEO));
+                if(mGeoRecordTime >= 0)
+                    mProximityTuner.recordComplete(); // Restored complete
+            }
+            Log.i(TAG, "antDecodeGEO: Found device, mean acquire time "+mGeoSearch.getMeanAcquireTime()+"ms");
+         }
+         
+         if(mGeoState != ChannelStates.CLOSED && mGeoState != ChannelStates.TRACKING_DATA)
          {
             Log.d(TAG, "antDecodeGEO: Tracking data");
 
             mGeoState = ChannelStates.TRACKING_DATA;
-            if(mCallbackSink != null)
-                mCallbackSink.notifyChannelStateChanged(GEO_CHANNEL);
+            mCallbacks.notifyChannelStateChanged(GEO_CHANNEL);
+            
+            if(!mStartup.isFinished())
+            {
+                mStartup.finish("tracking", now);
+                Log.i(TAG, "antDecodeGEO: Launch to tracking data "+mStartup.getTotal()+"ms ("+mStartup+")");
+            }
          }
 
          if(mDeviceNumberGEO == ANTChirp.WILDCARD)
@@ -1149,126 +1762,350 @@ public class AntPlusManager {
              }
          }
          
-         byte pageNum = ANTRxMessage[AntMesg.MESG_DATA_OFFSET+1];
+         byte pageNum = mGeoDecoder.decodePage(ANTRxMessage, AntMesg.MESG_DATA_OFFSET+1);
+         mGeoPageCount++;
+         // Read-backs may repeat a page, so the writer sees every one
+         mVisitLog.onPage(pageNum);
+         if(mGeoDecoder.getChangedFields() == 0)
+         {
+             // The cache repeats its pages; one we already have changes nothing
+             mGeoRepeatCount++;
+             Log.d(TAG, "Repeated Geo page "+((int)pageNum));
+             return;
+         }
          Log.i(TAG, "Received Geo page "+((int)pageNum));
+         mCallbacks.notifyChannelDataChanged(GEO_CHANNEL);
+         mSnapshots.appendDelta(ANTRxMessage, AntMesg.MESG_DATA_OFFSET+1);
+         scheduleSnapshot();
+         if(mEvents.hasSubscribers())
+             mEvents.publish(GeocacheEvent.page(now, GEO_CHANNEL, pageNum));
          
-        
-         if(pageNum >= GEO_PAGE_PROG_MIN && pageNum <= GEO_PAGE_PROG_MAX) {
-        	 byte dataId = ANTRxMessage[AntMesg.MESG_DATA_OFFSET+2];
-        	 byte[] data = new byte[6];
-        	 System.arraycopy(ANTRxMessage, AntMesg.MESG_DATA_OFFSET+3, data, 0, 6);
-        	 switch(dataId) {
-        	 case GEO_PROG_LATITUDE:
-        		 antDecodeGeoLatitude(data);
-        		 break;
-        	 case GEO_PROG_LONGITUDE:
-        		 antDecodeGeoLongitude(data);
-        		 break;
-        	 case GEO_PROG_HINT:
-        		 antDecodeGeoHint(data);
-        		 break;
-        	 case GEO_PROG_LOGGED_VISITS:
-        		 antDecodeGeoLoggedVisits(data);
-        		 break;
-        	 }
-         } else {
-        	 byte[] data = new byte[7];
-        	 System.arraycopy(ANTRxMessage, AntMesg.MESG_DATA_OFFSET+2, data, 0, 7);
-        	 if(pageNum == GEO_PAGE_ID) {
-            	 antDecodeGeoID(data);
-            	 requestGeoPage(GEO_PAGE_PIN);
-             } else if(pageNum == GEO_PAGE_PIN) {
-            	 antDecodeGeoPIN(data);
-             } else if(pageNum == GEO_PAGE_AUTH) {
-        	 antDecodeGeoAuth(data);
-	         } else {
-	        	 // TODO ERROR!
-	         }
+         if(mGeoRecordTime < 0 && mGeoDecoder.isComplete())
+         {
+             mGeoRecordTime = now - mGeoTrackingStart;
+             Log.i(TAG, "antDecodeGEO: Record complete in "+mGeoRecordTime+"ms, "+getGeoRxRate()+" msgs/s, "
+                     +mGeoRepeatCount+" of "+mGeoPageCount+" pages repeated, "
+                     +(mVisitLog.isAuthenticated() ? "authenticated" : "not authenticated"));
+             if(isGeoWildcardSearch())
+             {
+                 mProximityTuner.recordComplete();
+                 Log.i(TAG, "antDecodeGEO: Proximity "+mProximityTuner);
+             }
+             GeocacheRecord record = new GeocacheRecord(System.currentTimeMillis(), mDeviceNumberGEO, mGeoDecoder);
+             mGeocacheStore.add(record);
+             mJournal.appendRecord(record);
+             mEvents.publish(GeocacheEvent.record(now, record));
+             idleGeoIfDone();
+             // Opened for visits the writer won't write after all, e.g. the cache's ID has changed
+             if(mAutoSync)
+                 mHandler.post(mAutoSyncCheck);
          }
              
           Log.d(TAG, "antDecodeGEO end");
        }
+       
+       /**
+        * Records the sender of a background scan broadcast from its extended data.
+        *
+        * @param ANTRxMessage the received ANT message.
+        */
+       private void antDecodeScan(byte[] ANTRxMessage)
+       {
+           // Channel number and 8 data bytes, then the flag byte
+           int flagOffset = AntMesg.MESG_DATA_OFFSET + 9;
+           if(ANTRxMessage.length <= flagOffset)
+               return;
+           byte flags = ANTRxMessage[flagOffset];
+           int extOffset = flagOffset + 1;
+           if((flags & EXT_FLAG_CHANNEL_ID) == 0 || ANTRxMessage.length < extOffset + 4)
+               return;
+           short deviceNum = (short) ((ANTRxMessage[extOffset]&0xFF | ((ANTRxMessage[extOffset + 1]&0xFF) << 8)) & 0xFFFF);
+           extOffset += 4; // Device number, device type, transmission type
+           
+           byte rssi = DeviceTable.RSSI_UNKNOWN;
+           if((flags & EXT_FLAG_RSSI) != 0 && ANTRxMessage.length >= extOffset + 3)
+               rssi = ANTRxMessage[extOffset + 1]; // Measurement type, RSSI, threshold
+           
+           mDeviceTable.update(deviceNum, rssi, SystemClock.elapsedRealtime());
+           
+           // Sync visits logged while this cache was out of range
+           // Once per cache and session, and not if the user has closed the channel
+           int device = deviceNum & 0xFFFF;
+           if(mGeoState == ChannelStates.CLOSED && !mGeoClosedByUser
+                   && !mAutoSynced.contains(device) && mVisitLog.hasPendingVisits(device))
+           {
+               Log.i(TAG, "antDecodeScan: Device "+device+" has visits to sync, opening GEO channel");
+               mAutoSynced.add(device);
+               // The paired cache stays paired; it is put back when the sync ends
+               mSyncSavedDevice = mDeviceNumberGEO;
+               mAutoSync = true;
+               mDeviceNumberGEO = deviceNum;
+               openChannel(GEO_CHANNEL, false);
+           }
+       }
     };
     
+    /**
+     * Changes the period of the open Geocache channel. The cache keeps
+     * transmitting at 4Hz; a longer period makes us receive only every
+     * n-th broadcast, while staying synchronised.
+     */
+    private void setGeoPeriod(short period) {
+    	if(period == mGeoPeriod)
+    		return;
+    	Log.i(TAG, "setGeoPeriod: "+(period & 0xFFFF)+", was receiving "+getGeoRxRate()+" msgs/s");
+    	try {
+    		mAntReceiver.ANTSetChannelPeriod(GEO_CHANNEL, period);
+    	} catch (AntInterfaceException e) {
+    		antError();
+    		return;
+    	}
+    	mGeoPeriod = period;
+    	mGeoRxCount = 0;
+    	mGeoRxSince = SystemClock.elapsedRealtime();
+    }
+    
+    /**
+     * Nothing left to download, send or wait for: listen to every fourth
+     * broadcast only. Sending anything goes back to every broadcast.
+     */
+    private void idleGeoIfDone() {
+    	if(mGeoState != ChannelStates.CLOSED && mGeoRecordTime >= 0 && mGeoDecoder.isComplete()
+    			&& mGeoTx.isIdle() && !mVisitLog.isBusy())
+    		setGeoPeriod(GEO_IDLE_PERIOD);
+    }
+    
     private void requestGeoPage(byte page) {
     	Log.d(TAG, "Requesting Geo page "+((int)page));
-    	
-    	byte[] request = {
-    		GeoMesg.MESG_REQUEST_DATA_PAGE,
-    		(byte) 0xFF, // Reserved
-    		(byte) 0xFF, // Reserved
-    		(byte) 0x00, // Subfield 1
-    		(byte) 0x00, // Subfield 2
-    		(byte) 0x01, // Requested Transmission Response
-    		page,        // Requested Page Number
-    		(byte) 0x01  // Command Type
-    	};
-    	
+    	sendGeoPage(GeoMesg.requestDataPage(page), null);
+    }
+    
+    /**
+     * Queues a page to send to the cache as acknowledged data.
+     *
+     * @param listener told the transfer's outcome, or null
+     */
+    private void sendGeoPage(byte[] payload, TransmitQueue.Listener listener) {
+    	// Receive every broadcast while the answer is on its way
+    	setGeoPeriod(mGeoChannelPeriod);
+    	mGeoTx.send(payload, listener);
+    }
+    
+    private boolean transmitGeoPage(byte[] payload) {
 		try {
-			mAntReceiver.ANTSendAcknowledgedData(GEO_CHANNEL, request);
+			mAntReceiver.ANTSendAcknowledgedData(GEO_CHANNEL, payload);
+			return true;
 		} catch (AntInterfaceException e) {
 			antError();
+			return false;
 		}
     }
     
-    private void antDecodeGeoID(byte[] message) {
-    	mGeoID = decodeAscii6(message, 9);
+    /**
+     * Restores the Geocache pages read and whether the channel was open,
+     * as they were before the process was last killed, if that was
+     * recently. Call before start(). The settings come from mConfig.
+     */
+    public void restoreState(Context context)
+    {
+        mSnapshots = new SnapshotStore(new File(context.getFilesDir(), SNAPSHOT_FILE),
+                new File(context.getFilesDir(), DELTA_FILE), 8);
+        try
+        {
+            byte[] snapshot = mSnapshots.readSnapshot();
+            if(snapshot == null)
+                return;
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot));
+            if(in.readByte() != SNAPSHOT_VERSION)
+                return;
+            long age = System.currentTimeMillis() - in.readLong();
+            short deviceNumber = in.readShort();
+            boolean geoOpen = in.readBoolean();
+            // Reopen the last used channel however long ago; only its pages go stale
+            mResumeGeo = geoOpen;
+            // Pages from a wildcard search could belong to any cache
+            if(age > SNAPSHOT_MAX_AGE || deviceNumber == ANTChirp.WILDCARD)
+            {
+                Log.i(TAG, "restoreState: Ignoring snapshot from "+age+"ms ago");
+                return;
+            }
+            mGeoDecoder.restore(in);
+            int deltas = 0;
+            for(byte[] page : mSnapshots.readDeltas())
+            {
+                mGeoDecoder.restorePage(page, 0);
+                deltas++;
+            }
+            mGeoRestored = true;
+            mGeoRestoredDevice = deviceNumber;
+            Log.i(TAG, "restoreState: Restored GEO "+mGeoDecoder.getID()+" from "+age+"ms ago plus "+deltas+" pages, "
+                    +(mGeoDecoder.isComplete() ? "complete" : "incomplete")+(geoOpen ? ", reopening" : ""));
+        }
+        catch(IOException e)
+        {
+            Log.w(TAG, "restoreState: Could not read snapshot", e);
+            mGeoDecoder.reset();
+        }
     }
     
-    private String decodeAscii6(byte[] str, int length) {
-    	Log.d(TAG, "decoding Rx:"+getHexString(str));
-    	byte[] chars = new byte[length];
-    	for(int i = 0; i < chars.length; i++) {
-    		int left = 6*i;
-    		byte leftByte = str[left/8];
-    		byte rightByte = str[(left+5)/8];
-    		int nLeftBits = (2*i)%8;
-    		int nRightBits = 6-nLeftBits;
-    		byte leftMask = (byte) (0x3F >> nRightBits);
-    		byte leftBits = (byte) ((leftByte & leftMask) << nRightBits);
-    		byte rightBits = (byte) ((rightByte & 0xFF) >> 2+nLeftBits);
-    		chars[i] = (byte) ((leftBits | rightBits) + 0x20);
-    	}
-    	try {
-    		// US-ASCII is a 7-bit encoding scheme, so to simplify a bit, we
-    		// translate to 8-bit then decode with UTF-8 which is compatible
-    		// with ASCII8.
-    		return new String(chars, "UTF-8");
-    	} catch(UnsupportedEncodingException e) {
-    		return "";
-    	}
+    private void scheduleSnapshot()
+    {
+        if(mSnapshotScheduled)
+            return;
+        mSnapshotScheduled = true;
+        mHandler.postDelayed(mSnapshotTask, SNAPSHOT_INTERVAL);
     }
     
-    private void antDecodeGeoPIN(byte[] message) {
-    	mGeoPIN = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).getInt(1);
-    	mGeoTotalPages = message[5] & 0xFF;
-    	
-    	// update data from all other pages
-    	for(int i = GEO_PAGE_PIN+1; i < mGeoTotalPages; i++) {
-    		requestGeoPage((byte) i);
-    	}
+    private void writeSnapshot()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(SNAPSHOT_VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeShort(mDeviceNumberGEO);
+            // A visit sync isn't resumed after a restart
+            out.writeBoolean(mGeoState != ChannelStates.CLOSED && !mAutoSync);
+            mGeoDecoder.save(out);
+        }
+        catch(IOException e)
+        {
+            // Not thrown by a ByteArrayOutputStream
+        }
+        if(mSnapshots.getError() != null)
+            Log.w(TAG, "writeSnapshot: Last write failed", mSnapshots.getError());
+        // Written in the background
+        mSnapshots.writeSnapshot(bytes.toByteArray());
     }
     
-    private void antDecodeGeoLatitude(byte[] message) {
-    	mGeoLatitude = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    /**
+     * Reopens the channels that were open before the process was restarted,
+     * as soon as the settings are in and the radio can be used. Called as
+     * each of those comes about, in whatever order.
+     */
+    private void resumeChannels()
+    {
+        if(!mConfigLoaded || !mClaimedAntInterface || isAirPlaneModeOn() || !isEnabled())
+            return;
+        long now = SystemClock.elapsedRealtime();
+        mStartup.mark("ready", now);
+        if(!mResumeGeo)
+            return;
+        mResumeGeo = false;
+        Log.i(TAG, "resumeChannels: Reopening GEO channel "+mStartup.mark("resume", now)+"ms after launch");
+        // As when the user opens it: open after the reset
+        openChannel(GEO_CHANNEL, true);
+        requestReset();
+    }
+    
+    /**
+     * Reads the settings in the background; they are applied when in.
+     */
+    private void loadConfig()
+    {
+        mConfig = new ConfigStore(new File(mContext.getFilesDir(), CONFIG_FILE));
+        mConfig.load(new ConfigStore.Defaults()
+        {
+            public void fill(ConfigStore store)
+            {
+                // First run since the settings moved here, take over the UI's
+                SharedPreferences settings = mContext.getSharedPreferences(LEGACY_PREFS_NAME, 0);
+                store.putChannel(GEO_CHANNEL, (short) settings.getInt("DeviceNumberGEO", ANTChirp.WILDCARD),
+                        (byte) settings.getInt("ProximityThreshold", DEFAULT_BIN), GEO_PERIOD);
+                store.putBufferThreshold((short) settings.getInt("BufferThreshold", DEFAULT_BUFFER_THRESHOLD));
+            }
+        }, new Runnable()
+        {
+            public void run()
+            {
+                ConfigStore.ChannelSettings geo = mConfig.getChannel(GEO_CHANNEL);
+                if(geo != null)
+                {
+                    mDeviceNumberGEO = geo.deviceNumber;
+                    mProximityThreshold = geo.proximityBin;
+                    mGeoChannelPeriod = geo.period;
+                }
+                mBufferThreshold = mConfig.getBufferThreshold(DEFAULT_BUFFER_THRESHOLD);
+                mProximityTuner.setBase(mProximityThreshold);
+                mConfigLoaded = true;
+                Log.i(TAG, "loadConfig: GEO device "+(mDeviceNumberGEO & 0xFFFF)+", bin "+mProximityThreshold+", buffer "+mBufferThreshold);
+                mStartup.mark("config", SystemClock.elapsedRealtime());
+                mCallbacks.notifyAntStateChanged();
+                resumeChannels();
+            }
+        }, mHandlerExecutor);
     }
     
-    private void antDecodeGeoLongitude(byte[] message) {
-    	mGeoLongitude = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    private void saveGeoConfig()
+    {
+        mConfig.putChannel(GEO_CHANNEL, mDeviceNumberGEO, mProximityThreshold, mGeoChannelPeriod);
+    }
+    
+    /**
+     * Opens the journal in the background and restores what it holds on
+     * this thread: records into the store, and visits not yet written back
+     * to their cache.
+     */
+    private void openJournal()
+    {
+        mJournal = new GeocacheJournal(new File(mContext.getFilesDir(), JOURNAL_FILE));
+        mJournal.open(new GeocacheJournal.Replayer()
+        {
+            public void visit(String cacheId, int deviceNumber, long time)
+            {
+                mVisitLog.logVisit(cacheId, deviceNumber, time);
+            }
+
+            public void record(GeocacheRecord record)
+            {
+                mGeocacheStore.restore(record);
+            }
+        }, new Runnable()
+        {
+            public void run()
+            {
+                // Carry on without if it failed, nothing will be kept over a restart
+                if(mJournal.getError() != null)
+                    Log.e(TAG, "openJournal: Could not read journal", mJournal.getError());
+                mStartup.mark("journal", SystemClock.elapsedRealtime());
+            }
+        }, mHandlerExecutor);
     }
     
-    private void antDecodeGeoHint(byte[] message) {
-    	// TODO
+    /**
+     * @return whether the Geocache channel was opened as a wildcard search,
+     *         the only kind the proximity bin is sent to the radio for
+     */
+    private boolean isGeoWildcardSearch()
+    {
+        return channelConfig[GEO_CHANNEL].deviceNumber == ANTChirp.WILDCARD;
     }
     
-    private void antDecodeGeoLoggedVisits(byte[] message) {
-    	// TODO
-    	
+    /**
+     * Ends a visit sync, if one is under way, putting the paired device
+     * number back. The synced cache's pages go too, so that they are never
+     * snapshotted as the paired cache's. The channel is left as it is.
+     */
+    private void endAutoSync()
+    {
+        if(!mAutoSync)
+            return;
+        mAutoSync = false;
+        mHandler.removeCallbacks(mAutoSyncCheck);
+        mDeviceNumberGEO = mSyncSavedDevice;
+        mGeoDecoder.reset();
+        mGeoRecordTime = -1;
+        mCallbacks.notifyChannelDataChanged(GEO_CHANNEL);
+        scheduleSnapshot();
     }
     
-    private void antDecodeGeoAuth(byte[] message) {
-    	// TODO
-    	
+    private void geoVisitLogDone() {
+    	mCallbacks.notifyChannelDataChanged(GEO_CHANNEL);
+    	idleGeoIfDone();
+    	// After the writer has started on anything queued meanwhile
+    	if(mAutoSync)
+    		mHandler.post(mAutoSyncCheck);
     }
     
     /**
@@ -1291,7 +2128,15 @@ public class AntPlusManager {
            channelConfig[channel].isInitializing = true;
            channelConfig[channel].isDeinitializing = false;
 
-           mAntReceiver.ANTAssignChannel(channel, AntDefine.PARAMETER_RX_NOT_TX, networkNumber);  // Assign as slave channel on selected network (0 = public, 1 = ANT+, 2 = ANTFS)
+           if(channelConfig[channel].backgroundScan)
+           {
+               // AntInterface can't pass the extended assignment byte, so send the message ourselves
+               mAntReceiver.ANTTxMessage(new byte[] {4, AntMesg.MESG_ASSIGN_CHANNEL_ID, channel, AntDefine.PARAMETER_RX_NOT_TX, networkNumber, EXT_ASSIGN_BACKGROUND_SCAN});
+           }
+           else
+           {
+               mAntReceiver.ANTAssignChannel(channel, AntDefine.PARAMETER_RX_NOT_TX, networkNumber);  // Assign as slave channel on selected network (0 = public, 1 = ANT+, 2 = ANTFS)
+           }
            // The rest of the channel configuration will occur after the response is received (in responseEventHandler)
        }
        catch(AntInterfaceException aie)
@@ -0,0 +1,187 @@
+package com.dtomasiewicz.antchirp;
+
+import android.os.Handler;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Serves an AntPlusManager to a UI in another process over a Messenger.
+ *
+ * Commands arrive as messages. Manager callbacks aren't forwarded one by
+ * one: they mark what changed, and SNAPSHOT_DELAY after the first one a
+ * single ManagerSnapshot goes out with all the change flags, so a burst of
+ * pages costs the UI one binder call and one redraw.
+ */
+public class AntPlusServer extends Handler implements AntPlusManager.Callbacks
+{
+    private static final String TAG = "ANTPlusDemo - Server";
+
+    /** How long callbacks are collected into one snapshot (ms) */
+    private static final long SNAPSHOT_DELAY = 100;
+
+    // Client to server. Channel numbers and values go in arg1, flags in arg2.
+    public static final int MSG_REGISTER = 1;
+    public static final int MSG_UNREGISTER = 2;
+    public static final int MSG_ENABLE = 3;
+    public static final int MSG_DISABLE = 4;
+    public static final int MSG_RESET = 5;
+    public static final int MSG_CLAIM = 6;
+    public static final int MSG_SET_ANT_CONFIGURATION = 7;
+    public static final int MSG_OPEN_CHANNEL = 8;
+    public static final int MSG_CLOSE_CHANNEL = 9;
+    public static final int MSG_CLEAR_CHANNEL_STATES = 10;
+    public static final int MSG_START_SCAN = 11;
+    public static final int MSG_STOP_SCAN = 12;
+    public static final int MSG_SET_DEVICE_NUMBER = 13;
+    public static final int MSG_SET_PROXIMITY = 14;
+    public static final int MSG_SET_BUFFER = 15;
+    public static final int MSG_CHECK_STATE = 16;
+    public static final int MSG_LOG_VISIT = 17;
+
+    // Server to client
+    /** Snapshot in the data Bundle, FLAG_* in arg1, changed channel bits in arg2 */
+    public static final int MSG_SNAPSHOT = 100;
+
+    /** Internal: send the pending snapshot */
+    private static final int MSG_FLUSH = 101;
+
+    public static final int FLAG_ERROR = 0x01;
+    public static final int FLAG_ANT_STATE = 0x02;
+
+    /** Channel n's state changed sets bit n of arg2, its data bit n+8 */
+    public static final int DATA_CHANNEL_SHIFT = 8;
+
+    private final AntPlusManager mManager;
+
+    private Messenger mClient;
+
+    private int mFlags = 0;
+
+    private int mChannels = 0;
+
+    public AntPlusServer(AntPlusManager manager)
+    {
+        mManager = manager;
+    }
+
+    @Override
+    public void handleMessage(Message msg)
+    {
+        switch(msg.what)
+        {
+            case MSG_REGISTER:
+                mClient = msg.replyTo;
+                mManager.setCallbacks(this);
+                mFlags |= FLAG_ANT_STATE;
+                break;
+            case MSG_UNREGISTER:
+                mClient = null;
+                mManager.setCallbacks(null);
+                return;
+            case MSG_ENABLE:
+                mManager.doEnable();
+                break;
+            case MSG_DISABLE:
+                mManager.doDisable();
+                break;
+            case MSG_RESET:
+                mManager.requestReset();
+                break;
+            case MSG_CLAIM:
+                mManager.tryClaimAnt();
+                break;
+            case MSG_SET_ANT_CONFIGURATION:
+                mManager.setAntConfiguration();
+                break;
+            case MSG_OPEN_CHANNEL:
+                mManager.openChannel((byte) msg.arg1, msg.arg2 != 0);
+                break;
+            case MSG_CLOSE_CHANNEL:
+                mManager.closeChannel((byte) msg.arg1);
+                break;
+            case MSG_CLEAR_CHANNEL_STATES:
+                mManager.clearChannelStates();
+                break;
+            case MSG_START_SCAN:
+                mManager.startScan();
+                break;
+            case MSG_STOP_SCAN:
+                mManager.stopScan();
+                break;
+            case MSG_SET_DEVICE_NUMBER:
+                mManager.setDeviceNumberGEO((short) msg.arg1);
+                break;
+            case MSG_SET_PROXIMITY:
+                mManager.setProximityThreshold((byte) msg.arg1);
+                break;
+            case MSG_SET_BUFFER:
+                mManager.setBufferThreshold((short) msg.arg1);
+                break;
+            case MSG_CHECK_STATE:
+                break;
+            case MSG_LOG_VISIT:
+                mManager.logGeoVisit();
+                break;
+            case MSG_FLUSH:
+                flush();
+                return;
+            default:
+                super.handleMessage(msg);
+                return;
+        }
+        // Let the client see the outcome of its command
+        scheduleFlush();
+    }
+
+    public void errorCallback()
+    {
+        mFlags |= FLAG_ERROR;
+        scheduleFlush();
+    }
+
+    public void notifyAntStateChanged()
+    {
+        mFlags |= FLAG_ANT_STATE;
+        scheduleFlush();
+    }
+
+    public void notifyChannelStateChanged(byte channel)
+    {
+        mChannels |= 1 << channel;
+        scheduleFlush();
+    }
+
+    public void notifyChannelDataChanged(byte channel)
+    {
+        mChannels |= 1 << (channel + DATA_CHANNEL_SHIFT);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush()
+    {
+        if(!hasMessages(MSG_FLUSH))
+            sendEmptyMessageDelayed(MSG_FLUSH, SNAPSHOT_DELAY);
+    }
+
+    private void flush()
+    {
+        if(mClient == null)
+            return;
+        Message msg = Message.obtain(null, MSG_SNAPSHOT, mFlags, mChannels);
+        msg.setData(ManagerSnapshot.of(mManager).toBundle());
+        mFlags = 0;
+        mChannels = 0;
+        try
+        {
+            mClient.send(msg);
+        }
+        catch(RemoteException e)
+        {
+            Log.w(TAG, "Client went away");
+            mClient = null;
+            mManager.setCallbacks(null);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+
+/**
+ * Passes AntPlusManager callbacks on to any number of subscribers.
+ *
+ * The subscriber list is a copy-on-write array, so dispatching takes no
+ * lock. A callback only sets a bit in each subscriber's pending set and,
+ * if that set was empty, posts one delivery to the subscriber's Handler.
+ * Whatever piles up before the delivery runs is delivered once. A slow
+ * subscriber therefore gets fewer, coalesced callbacks; the RX path and
+ * the other subscribers never wait for it.
+ */
+public class CallbackFanOut implements AntPlusManager.Callbacks
+{
+    private static final int PENDING_ERROR = 1 << 0;
+    private static final int PENDING_ANT_STATE = 1 << 1;
+
+    /** Channel n's state change is bit CHANNEL_STATE_SHIFT+n, its data change DATA_SHIFT+n */
+    private static final int CHANNEL_STATE_SHIFT = 2;
+    private static final int DATA_SHIFT = 16;
+    private static final int MAX_CHANNELS = 14;
+
+    private static class Subscriber implements Runnable
+    {
+        final AntPlusManager.Callbacks mCallbacks;
+        final Handler mHandler;
+        final AtomicInteger mPending = new AtomicInteger();
+
+        Subscriber(AntPlusManager.Callbacks callbacks, Handler handler)
+        {
+            mCallbacks = callbacks;
+            mHandler = handler;
+        }
+
+        void post(int bits)
+        {
+            int before;
+            do
+            {
+                before = mPending.get();
+            } while(!mPending.compareAndSet(before, before | bits));
+            if(before == 0)
+                mHandler.post(this);
+        }
+
+        public void run()
+        {
+            int pending = mPending.getAndSet(0);
+            if((pending & PENDING_ERROR) != 0)
+                mCallbacks.errorCallback();
+            for(byte channel = 0; channel < MAX_CHANNELS; channel++)
+            {
+                if((pending & (1 << (CHANNEL_STATE_SHIFT + channel))) != 0)
+                    mCallbacks.notifyChannelStateChanged(channel);
+                if((pending & (1 << (DATA_SHIFT + channel))) != 0)
+                    mCallbacks.notifyChannelDataChanged(channel);
+            }
+            if((pending & PENDING_ANT_STATE) != 0)
+                mCallbacks.notifyAntStateChanged();
+        }
+    }
+
+    private volatile Subscriber[] mSubscribers = new Subscriber[0];
+
+    private final Handler mDefaultHandler;
+
+    /**
+     * @param defaultHandler where subscribers that don't name a Handler are called
+     */
+    public CallbackFanOut(Handler defaultHandler)
+    {
+        mDefaultHandler = defaultHandler;
+    }
+
+    /**
+     * @param handler the Handler whose thread calls callbacks, or null for the default one
+     */
+    public synchronized void add(AntPlusManager.Callbacks callbacks, Handler handler)
+    {
+        if(indexOf(callbacks) >= 0)
+            return;
+        Subscriber[] old = mSubscribers;
+        Subscriber[] subscribers = new Subscriber[old.length + 1];
+        System.arraycopy(old, 0, subscribers, 0, old.length);
+        subscribers[old.length] = new Subscriber(callbacks, handler != null ? handler : mDefaultHandler);
+        mSubscribers = subscribers;
+    }
+
+    public synchronized void remove(AntPlusManager.Callbacks callbacks)
+    {
+        int index = indexOf(callbacks);
+        if(index < 0)
+            return;
+        Subscriber[] old = mSubscribers;
+        Subscriber[] subscribers = new Subscriber[old.length - 1];
+        System.arraycopy(old, 0, subscribers, 0, index);
+        System.arraycopy(old, index + 1, subscribers, index, old.length - index - 1);
+        // A dispatch already under way may still post one last callback
+        old[index].mHandler.removeCallbacks(old[index]);
+        mSubscribers = subscribers;
+    }
+
+    public int size()
+    {
+        return mSubscribers.length;
+    }
+
+    private int indexOf(AntPlusManager.Callbacks callbacks)
+    {
+        Subscriber[] subscribers = mSubscribers;
+        for(int i = 0; i < subscribers.length; i++)
+        {
+            if(subscribers[i].mCallbacks == callbacks)
+                return i;
+        }
+        return -1;
+    }
+
+    private void dispatch(int bits)
+    {
+        Subscriber[] subscribers = mSubscribers;
+        for(int i = 0; i < subscribers.length; i++)
+            subscribers[i].post(bits);
+    }
+
+    public void errorCallback()
+    {
+        dispatch(PENDING_ERROR);
+    }
+
+    public void notifyAntStateChanged()
+    {
+        dispatch(PENDING_ANT_STATE);
+    }
+
+    public void notifyChannelStateChanged(byte channel)
+    {
+        dispatch(1 << (CHANNEL_STATE_SHIFT + channel));
+    }
+
+    public void notifyChannelDataChanged(byte channel)
+    {
+        dispatch(1 << (DATA_SHIFT + channel));
+    }
+}
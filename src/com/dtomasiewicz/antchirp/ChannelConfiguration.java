@@ -7,6 +7,12 @@ public class ChannelConfiguration {
     public short period;
     public byte freq;
     public byte proxSearch;
+    /** High priority search timeout, 2.5s units, 0 disables. */
+    public byte searchTimeout = 0;
+    /** Low priority search timeout, 2.5s units, 0xFF never times out. */
+    public byte lowPrioritySearchTimeout = 12;
+    /** Assign as a background scanning channel, receiving from every device in range. */
+    public boolean backgroundScan = false;
 
     public boolean isInitializing = false;
     public boolean isDeinitializing = false;
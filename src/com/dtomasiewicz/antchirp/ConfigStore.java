@@ -0,0 +1,247 @@
+package com.dtomasiewicz.antchirp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Channel settings and the event buffer threshold, kept in a small
+ * versioned binary file.
+ *
+ * Nothing here touches the file on the caller's thread. load() reads it on
+ * a background thread and reports back through an Executor. Changes are
+ * made in memory straight away; the file is rewritten WRITE_DELAY after the
+ * first change of a batch, so a burst of changes costs one write.
+ */
+public class ConfigStore
+{
+    /** Settings of one channel. */
+    public static class ChannelSettings
+    {
+        public short deviceNumber;
+        public byte proximityBin;
+        public short period;
+
+        public ChannelSettings(short deviceNumber, byte proximityBin, short period)
+        {
+            this.deviceNumber = deviceNumber;
+            this.proximityBin = proximityBin;
+            this.period = period;
+        }
+    }
+
+    /**
+     * Supplies the settings when there is no file yet, e.g. from an older
+     * version's preferences. Called on the background thread.
+     */
+    public interface Defaults
+    {
+        public void fill(ConfigStore store);
+    }
+
+    /** "ACFG" */
+    private static final int MAGIC = 0x41434647;
+
+    private static final byte VERSION = 1;
+
+    /** How long changes collect before the file is rewritten (ms). */
+    private static final long WRITE_DELAY = 500;
+
+    private static final short UNSET = -1;
+
+    private final File mFile;
+
+    private final ScheduledExecutorService mWorker = Executors.newSingleThreadScheduledExecutor();
+
+    // Guarded by this
+    private final Map<Integer, ChannelSettings> mChannels = new HashMap<Integer, ChannelSettings>();
+    private short mBufferThreshold = UNSET;
+    private boolean mWriteScheduled = false;
+
+    private final Runnable mWrite = new Runnable()
+    {
+        public void run()
+        {
+            write();
+        }
+    };
+
+    public ConfigStore(File file)
+    {
+        mFile = file;
+    }
+
+    /**
+     * Reads the file in the background. Settings changed before it has been
+     * read are kept over the ones read.
+     *
+     * @param onLoaded run on callbackExecutor once the settings are in
+     */
+    public void load(final Defaults defaults, final Runnable onLoaded, final Executor callbackExecutor)
+    {
+        mWorker.execute(new Runnable()
+        {
+            public void run()
+            {
+                if(!read())
+                    defaults.fill(ConfigStore.this);
+                callbackExecutor.execute(onLoaded);
+            }
+        });
+    }
+
+    /**
+     * @return a copy of the channel's settings, null if it has none
+     */
+    public synchronized ChannelSettings getChannel(int channel)
+    {
+        ChannelSettings settings = mChannels.get(channel);
+        if(settings == null)
+            return null;
+        return new ChannelSettings(settings.deviceNumber, settings.proximityBin, settings.period);
+    }
+
+    public synchronized void putChannel(int channel, short deviceNumber, byte proximityBin, short period)
+    {
+        mChannels.put(channel, new ChannelSettings(deviceNumber, proximityBin, period));
+        scheduleWrite();
+    }
+
+    public synchronized short getBufferThreshold(short defaultThreshold)
+    {
+        return mBufferThreshold != UNSET ? mBufferThreshold : defaultThreshold;
+    }
+
+    public synchronized void putBufferThreshold(short threshold)
+    {
+        mBufferThreshold = threshold;
+        scheduleWrite();
+    }
+
+    /**
+     * Writes any pending changes and stops the background thread.
+     */
+    public void close()
+    {
+        // A write already scheduled still runs after shutdown()
+        mWorker.shutdown();
+        try
+        {
+            mWorker.awaitTermination(2, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void scheduleWrite()
+    {
+        if(mWriteScheduled || mWorker.isShutdown())
+            return;
+        mWriteScheduled = true;
+        mWorker.schedule(mWrite, WRITE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if there was no file, or none this version can read, in
+     *         which case load() falls back to the Defaults
+     */
+    private boolean read()
+    {
+        if(!mFile.exists())
+            return false;
+        Map<Integer, ChannelSettings> channels = new HashMap<Integer, ChannelSettings>();
+        short bufferThreshold;
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try
+            {
+                if(in.readInt() != MAGIC)
+                    return false;
+                if(in.readByte() != VERSION)
+                    return false;
+                bufferThreshold = in.readShort();
+                int count = in.readUnsignedByte();
+                for(int i = 0; i < count; i++)
+                {
+                    int channel = in.readUnsignedByte();
+                    channels.put(channel, new ChannelSettings(in.readShort(), in.readByte(), in.readShort()));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch(IOException e)
+        {
+            return false;
+        }
+        synchronized(this)
+        {
+            for(Map.Entry<Integer, ChannelSettings> e : channels.entrySet())
+            {
+                if(!mChannels.containsKey(e.getKey()))
+                    mChannels.put(e.getKey(), e.getValue());
+            }
+            if(mBufferThreshold == UNSET)
+                mBufferThreshold = bufferThreshold;
+        }
+        return true;
+    }
+
+    private void write()
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            synchronized(this)
+            {
+                mWriteScheduled = false;
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeShort(mBufferThreshold);
+                out.writeByte(mChannels.size());
+                for(Map.Entry<Integer, ChannelSettings> e : mChannels.entrySet())
+                {
+                    out.writeByte(e.getKey());
+                    out.writeShort(e.getValue().deviceNumber);
+                    out.writeByte(e.getValue().proximityBin);
+                    out.writeShort(e.getValue().period);
+                }
+            }
+
+            File tmp = new File(mFile.getPath() + ".tmp");
+            FileOutputStream file = new FileOutputStream(tmp);
+            try
+            {
+                bytes.writeTo(file);
+                file.getFD().sync();
+            }
+            finally
+            {
+                file.close();
+            }
+            if(!tmp.renameTo(mFile))
+                throw new IOException("Could not replace " + mFile);
+        }
+        catch(IOException e)
+        {
+            // Keep the old file; the next change tries again
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.dtomasiewicz.antchirp;
+
+/**
+ * Measures how received messages reach the app, separately for immediate
+ * and buffered delivery.
+ *
+ * Messages arriving less than BATCH_GAP apart are one batch, delivered by
+ * one wakeup. Messages carry no timestamp, but the device transmits at a
+ * known period, so in a batch of n the k-th message is (n-1-k) periods
+ * old on arrival; that is the delivery latency recorded.
+ */
+public class DeliveryStats
+{
+    public static final int IMMEDIATE = 0;
+    public static final int BUFFERED = 1;
+
+    /** Longest gap between two messages of one batch (ms). */
+    private static final long BATCH_GAP = 50;
+
+    private static final long MINUTE = 60 * 1000;
+
+    private int mMode = IMMEDIATE;
+
+    /** Per mode: wakeups, messages, summed latency and time spent in the mode (ms). */
+    private final long[] mWakeups = new long[2];
+    private final long[] mMessages = new long[2];
+    private final long[] mLatency = new long[2];
+    private final long[] mTime = new long[2];
+
+    private long mModeSince;
+
+    private long mLastMessage = 0;
+
+    private int mBatchSize = 0;
+
+    private long mBatchPeriod = 0;
+
+    public DeliveryStats(long now)
+    {
+        mModeSince = now;
+    }
+
+    public synchronized int getMode()
+    {
+        return mMode;
+    }
+
+    public synchronized void setMode(int mode, long now)
+    {
+        if(mode == mMode)
+            return;
+        endBatch();
+        mTime[mMode] += now - mModeSince;
+        mModeSince = now;
+        mMode = mode;
+    }
+
+    /**
+     * @param period the sender's message period (ms)
+     */
+    public synchronized void onMessage(long now, long period)
+    {
+        if(mBatchSize == 0 || now - mLastMessage > BATCH_GAP)
+        {
+            endBatch();
+            mWakeups[mMode]++;
+        }
+        mLastMessage = now;
+        mBatchSize++;
+        mBatchPeriod = period;
+        mMessages[mMode]++;
+    }
+
+    public synchronized float getWakeupsPerMinute(int mode, long now)
+    {
+        long time = mTime[mode] + (mode == mMode ? now - mModeSince : 0);
+        if(time <= 0)
+            return 0;
+        return mWakeups[mode] * (float) MINUTE / time;
+    }
+
+    /**
+     * @return mean delivery latency, the batch still arriving counted as on time (ms)
+     */
+    public synchronized long getMeanLatency(int mode)
+    {
+        if(mMessages[mode] == 0)
+            return 0;
+        return mLatency[mode] / mMessages[mode];
+    }
+
+    private void endBatch()
+    {
+        // Ages 0 .. n-1 periods, summed
+        mLatency[mMode] += mBatchPeriod * mBatchSize * (mBatchSize - 1) / 2;
+        mBatchSize = 0;
+    }
+}
@@ -0,0 +1,146 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Live table of geocaches heard by a background scan channel.
+ *
+ * Every broadcast updates its device's entry in place; entries not heard
+ * from within the expiry time are dropped. Small enough that a linear
+ * search beats hashing, and updates don't allocate once a device is known.
+ */
+public class DeviceTable
+{
+    /** RSSI value used when the radio didn't report one. */
+    public static final byte RSSI_UNKNOWN = Byte.MIN_VALUE;
+
+    public static class Entry
+    {
+        public short deviceNumber;
+
+        /** Time of the last broadcast, in the caller's clock (ms). */
+        public long lastSeen;
+
+        /** Signal strength of the last broadcast (dBm). */
+        public byte rssi;
+
+        /** Broadcasts heard since the device was first seen. */
+        public int count;
+
+        Entry copy()
+        {
+            Entry e = new Entry();
+            e.deviceNumber = deviceNumber;
+            e.lastSeen = lastSeen;
+            e.rssi = rssi;
+            e.count = count;
+            return e;
+        }
+    }
+
+    /** Strongest signal first, most recently seen breaking ties. */
+    private static final Comparator<Entry> BY_RSSI = new Comparator<Entry>()
+    {
+        public int compare(Entry a, Entry b)
+        {
+            if(a.rssi != b.rssi)
+                return b.rssi - a.rssi;
+            return a.lastSeen < b.lastSeen ? 1 : (a.lastSeen > b.lastSeen ? -1 : 0);
+        }
+    };
+
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    private final long mExpiry;
+
+    /**
+     * @param expiry how long a device stays listed after its last broadcast (ms)
+     */
+    public DeviceTable(long expiry)
+    {
+        mExpiry = expiry;
+    }
+
+    public synchronized void update(short deviceNumber, byte rssi, long now)
+    {
+        Entry entry = null;
+        for(int i = 0; i < mEntries.size(); i++)
+        {
+            if(mEntries.get(i).deviceNumber == deviceNumber)
+            {
+                entry = mEntries.get(i);
+                break;
+            }
+        }
+        if(entry == null)
+        {
+            entry = new Entry();
+            entry.deviceNumber = deviceNumber;
+            mEntries.add(entry);
+        }
+        entry.lastSeen = now;
+        entry.rssi = rssi;
+        entry.count++;
+    }
+
+    /**
+     * @return signal strength of the device's last broadcast, RSSI_UNKNOWN if it isn't listed
+     */
+    public synchronized byte getRssi(short deviceNumber)
+    {
+        for(int i = 0; i < mEntries.size(); i++)
+        {
+            if(mEntries.get(i).deviceNumber == deviceNumber)
+                return mEntries.get(i).rssi;
+        }
+        return RSSI_UNKNOWN;
+    }
+
+    public synchronized void clear()
+    {
+        mEntries.clear();
+    }
+
+    /**
+     * Drops devices not heard from within the expiry time.
+     */
+    public synchronized void expire(long now)
+    {
+        for(int i = mEntries.size() - 1; i >= 0; i--)
+        {
+            if(now - mEntries.get(i).lastSeen > mExpiry)
+                mEntries.remove(i);
+        }
+    }
+
+    /**
+     * @return the strongest device still in range, or null if none
+     */
+    public synchronized Entry strongest(long now)
+    {
+        expire(now);
+        Entry best = null;
+        for(int i = 0; i < mEntries.size(); i++)
+        {
+            if(best == null || BY_RSSI.compare(mEntries.get(i), best) < 0)
+                best = mEntries.get(i);
+        }
+        return best == null ? null : best.copy();
+    }
+
+    /**
+     * @return copies of the devices still in range, strongest first
+     */
+    public synchronized List<Entry> snapshot(long now)
+    {
+        expire(now);
+        List<Entry> copy = new ArrayList<Entry>(mEntries.size());
+        for(int i = 0; i < mEntries.size(); i++)
+            copy.add(mEntries.get(i).copy());
+        Collections.sort(copy, BY_RSSI);
+        return copy;
+    }
+}
@@ -0,0 +1,298 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes items to subscribers at the pace each one requests them.
+ *
+ * publish() never blocks: the item goes into each subscription's queue and
+ * the subscription's Executor delivers as much of the queue as has been
+ * requested. What happens when a subscriber falls behind is chosen per
+ * subscription with an Overflow strategy.
+ */
+public class EventPublisher<T> implements Flow.Publisher<T>
+{
+    public enum Overflow
+    {
+        /** Keep only the newest item, for consumers that show current state */
+        LATEST,
+
+        /** Keep up to the capacity, dropping the oldest item when full */
+        DROP_OLDEST,
+
+        /** Keep up to the capacity, failing the subscription with an error when full */
+        BUFFER
+    }
+
+    /** Queue size for subscribe(Subscriber) */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final Executor mDefaultExecutor;
+
+    /** Copy-on-write, like CallbackFanOut */
+    private volatile Subscription<T>[] mSubscriptions = newArray(0);
+
+    private volatile boolean mCompleted = false;
+
+    /**
+     * @param defaultExecutor delivers to subscribers that don't name an Executor
+     */
+    public EventPublisher(Executor defaultExecutor)
+    {
+        mDefaultExecutor = defaultExecutor;
+    }
+
+    /**
+     * Subscribes with a BUFFER of DEFAULT_CAPACITY on the default Executor.
+     */
+    public void subscribe(Flow.Subscriber<? super T> subscriber)
+    {
+        subscribe(subscriber, Overflow.BUFFER, DEFAULT_CAPACITY, null);
+    }
+
+    /**
+     * @param capacity queue size, ignored for LATEST
+     * @param executor delivers this subscriber's signals, one at a time; null for the default
+     */
+    public void subscribe(Flow.Subscriber<? super T> subscriber, Overflow overflow, int capacity, Executor executor)
+    {
+        if(subscriber == null)
+            throw new NullPointerException();
+        Subscription<T> s = new Subscription<T>(this, subscriber, overflow, overflow == Overflow.LATEST ? 1 : capacity,
+                executor != null ? executor : mDefaultExecutor);
+        if(mCompleted)
+            s.complete();
+        else
+            add(s);
+        s.schedule();
+    }
+
+    public boolean hasSubscribers()
+    {
+        return mSubscriptions.length > 0;
+    }
+
+    public void publish(T item)
+    {
+        Subscription<T>[] subscriptions = mSubscriptions;
+        for(int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].offer(item);
+    }
+
+    /**
+     * Completes every subscription once its queue has been delivered.
+     */
+    public void complete()
+    {
+        mCompleted = true;
+        Subscription<T>[] subscriptions = mSubscriptions;
+        for(int i = 0; i < subscriptions.length; i++)
+            subscriptions[i].complete();
+        synchronized(this)
+        {
+            mSubscriptions = newArray(0);
+        }
+    }
+
+    private synchronized void add(Subscription<T> s)
+    {
+        Subscription<T>[] old = mSubscriptions;
+        Subscription<T>[] subscriptions = newArray(old.length + 1);
+        System.arraycopy(old, 0, subscriptions, 0, old.length);
+        subscriptions[old.length] = s;
+        mSubscriptions = subscriptions;
+    }
+
+    private synchronized void remove(Subscription<T> s)
+    {
+        Subscription<T>[] old = mSubscriptions;
+        for(int i = 0; i < old.length; i++)
+        {
+            if(old[i] == s)
+            {
+                Subscription<T>[] subscriptions = newArray(old.length - 1);
+                System.arraycopy(old, 0, subscriptions, 0, i);
+                System.arraycopy(old, i + 1, subscriptions, i, old.length - i - 1);
+                mSubscriptions = subscriptions;
+                return;
+            }
+        }
+    }
+
+    // A generic array can't be created directly; every element put in it is a Subscription<T>
+    @SuppressWarnings("unchecked")
+    private Subscription<T>[] newArray(int length)
+    {
+        return (Subscription<T>[]) new Subscription<?>[length];
+    }
+
+    private static class Subscription<T> implements Flow.Subscription, Runnable
+    {
+        private final EventPublisher<T> mPublisher;
+        private final Flow.Subscriber<? super T> mSubscriber;
+        private final Overflow mOverflow;
+        private final int mCapacity;
+        private final Executor mExecutor;
+
+        /** Signals waiting to be delivered, guarded by this */
+        private final LinkedList<T> mQueue = new LinkedList<T>();
+        private long mRequested = 0;
+        private Throwable mError;
+        private boolean mDone = false;
+        private boolean mCancelled = false;
+
+        /** Only touched on the delivery run */
+        private boolean mStarted = false;
+        private boolean mTerminated = false;
+
+        /** Deliveries scheduled but not yet run, so that only one runs at a time */
+        private final AtomicInteger mWip = new AtomicInteger();
+
+        Subscription(EventPublisher<T> publisher, Flow.Subscriber<? super T> subscriber, Overflow overflow, int capacity,
+                Executor executor)
+        {
+            mPublisher = publisher;
+            mSubscriber = subscriber;
+            mOverflow = overflow;
+            mCapacity = Math.max(1, capacity);
+            mExecutor = executor;
+        }
+
+        void offer(T item)
+        {
+            synchronized(this)
+            {
+                if(mCancelled || mDone || mError != null)
+                    return;
+                if(mQueue.size() >= mCapacity)
+                {
+                    switch(mOverflow)
+                    {
+                        case LATEST:
+                        case DROP_OLDEST:
+                            mQueue.poll();
+                            break;
+                        case BUFFER:
+                            mQueue.clear();
+                            mError = new IllegalStateException("Subscriber fell more than " + mCapacity + " events behind");
+                            break;
+                    }
+                }
+                if(mError == null)
+                    mQueue.add(item);
+            }
+            schedule();
+        }
+
+        void complete()
+        {
+            synchronized(this)
+            {
+                mDone = true;
+            }
+            schedule();
+        }
+
+        public void request(long n)
+        {
+            synchronized(this)
+            {
+                if(n <= 0)
+                {
+                    mQueue.clear();
+                    mError = new IllegalArgumentException("request(" + n + ")");
+                }
+                else
+                {
+                    mRequested += n;
+                    if(mRequested < 0)
+                        mRequested = Long.MAX_VALUE; // Effectively unbounded
+                }
+            }
+            schedule();
+        }
+
+        public void cancel()
+        {
+            synchronized(this)
+            {
+                mCancelled = true;
+                mQueue.clear();
+            }
+            mPublisher.remove(this);
+        }
+
+        void schedule()
+        {
+            if(mWip.getAndIncrement() == 0)
+                mExecutor.execute(this);
+        }
+
+        public void run()
+        {
+            int missed = 1;
+            do
+            {
+                deliver();
+                missed = mWip.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        private void deliver()
+        {
+            if(mTerminated)
+                return;
+            if(!mStarted)
+            {
+                mStarted = true;
+                mSubscriber.onSubscribe(this);
+            }
+            while(true)
+            {
+                T item;
+                Throwable error = null;
+                boolean done = false;
+                synchronized(this)
+                {
+                    if(mCancelled)
+                        return;
+                    if(mError != null)
+                    {
+                        error = mError;
+                        item = null;
+                    }
+                    else if(mQueue.isEmpty())
+                    {
+                        if(!mDone)
+                            return;
+                        done = true;
+                        item = null;
+                    }
+                    else if(mRequested == 0)
+                    {
+                        return;
+                    }
+                    else
+                    {
+                        item = mQueue.poll();
+                        if(mRequested != Long.MAX_VALUE)
+                            mRequested--;
+                    }
+                }
+                if(error != null || done)
+                {
+                    mTerminated = true;
+                    mPublisher.remove(this);
+                    if(error != null)
+                        mSubscriber.onError(error);
+                    else
+                        mSubscriber.onComplete();
+                    return;
+                }
+                mSubscriber.onNext(item);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.dtomasiewicz.antchirp;
+
+/**
+ * The reactive streams interfaces, with the same shape as
+ * java.util.concurrent.Flow, which the Android versions we support don't
+ * have. Code written against these moves over by changing the import.
+ */
+public final class Flow
+{
+    private Flow()
+    {
+    }
+
+    public interface Publisher<T>
+    {
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T>
+    {
+        public void onSubscribe(Subscription subscription);
+
+        public void onNext(T item);
+
+        public void onError(Throwable throwable);
+
+        public void onComplete();
+    }
+
+    public interface Subscription
+    {
+        /** Asks for n more items; n must be positive. */
+        public void request(long n);
+
+        public void cancel();
+    }
+}
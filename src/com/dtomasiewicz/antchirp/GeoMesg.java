@@ -5,4 +5,57 @@ public class GeoMesg {
 	public static final byte MESG_REQUEST_DATA_PAGE = (byte) 0x46;
 
 	protected GeoMesg() {}
+	
+	/**
+	 * Builds a Request Data Page (common page 70) payload asking for a
+	 * single acknowledged transmission of the given page.
+	 */
+	public static byte[] requestDataPage(byte page) {
+		return new byte[] {
+			MESG_REQUEST_DATA_PAGE,
+			(byte) 0xFF, // Reserved
+			(byte) 0xFF, // Reserved
+			(byte) 0x00, // Subfield 1
+			(byte) 0x00, // Subfield 2
+			(byte) 0x01, // Requested Transmission Response
+			page,        // Requested Page Number
+			(byte) 0x01  // Command Type
+		};
+	}
+	
+	/**
+	 * Builds an Authentication page (page 32) asking the cache to answer
+	 * with a token for the given nonce.
+	 */
+	public static byte[] authenticationRequest(int nonce) {
+		return new byte[] {
+			GeocacheDecoder.PAGE_AUTH,
+			(byte) 0xFF, // Reserved
+			(byte) nonce,
+			(byte) (nonce >> 8),
+			(byte) (nonce >> 16),
+			(byte) (nonce >> 24),
+			(byte) 0xFF, // Reserved
+			(byte) 0xFF  // Reserved
+		};
+	}
+	
+	/**
+	 * Builds a Logged Visits programmable page, to be written back to the
+	 * cache.
+	 *
+	 * @param lastVisit seconds since the ANT epoch
+	 */
+	public static byte[] loggedVisitsPage(byte page, long lastVisit, int visits) {
+		return new byte[] {
+			page,
+			GeocacheDecoder.PROG_LOGGED_VISITS,
+			(byte) lastVisit,
+			(byte) (lastVisit >> 8),
+			(byte) (lastVisit >> 16),
+			(byte) (lastVisit >> 24),
+			(byte) visits,
+			(byte) (visits >> 8)
+		};
+	}
 }
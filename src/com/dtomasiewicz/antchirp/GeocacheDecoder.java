@@ -0,0 +1,564 @@
+package com.dtomasiewicz.antchirp;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Decodes ANT+ Geocache data pages and holds the last decoded values.
+ *
+ * Has no Android dependencies so that the handset (AntPlusManager) and the
+ * serial gateway share the same protocol code. Pages are decoded in place
+ * from the buffer they arrived in.
+ */
+public class GeocacheDecoder
+{
+    /**
+     * Receives the follow-up page requests generated while decoding.
+     */
+    public interface PageRequester
+    {
+        public void requestPage(byte page);
+    }
+
+    /** ANT+ device type for a Geocache */
+    public static final byte DEVICE_TYPE = 0x13;
+
+    /** ANT+ channel period for a Geocache, 4Hz, the fastest it transmits at */
+    public static final short PERIOD = 8192;
+
+    /**
+     * Receive period once the record is read: 1Hz, every fourth broadcast.
+     * 32768 doesn't fit a signed short; the radio takes the unsigned value.
+     */
+    public static final short IDLE_PERIOD = (short) 32768;
+
+    /** 2457Mhz (ANT+ frequency) */
+    public static final byte RF_FREQ = 57;
+
+    public static final byte PAGE_ID = 0; // 5.3
+    public static final byte PAGE_PIN = 1; // 5.4
+    public static final byte PAGE_PROG_MIN = 2; // 5.5
+    public static final byte PAGE_PROG_MAX = 31; // 5.5
+    public static final byte PAGE_AUTH = 32; // 5.11
+
+    public static final byte PROG_LATITUDE = 0; // 5.6
+    public static final byte PROG_LONGITUDE = 1; // 5.7
+    public static final byte PROG_HINT = 2; // 5.8
+    public static final byte PROG_LOGGED_VISITS = 4; // 5.10
+
+    // Decoded fields, for getChangedFields() and getFieldVersion()
+    public static final int FIELD_ID = 0;
+    public static final int FIELD_PIN = 1;
+    public static final int FIELD_TOTAL_PAGES = 2;
+    public static final int FIELD_LATITUDE = 3;
+    public static final int FIELD_LONGITUDE = 4;
+    public static final int FIELD_HINT = 5;
+    public static final int FIELD_LOGGED_VISITS = 6;
+    public static final int FIELD_AUTH = 7;
+    private static final int FIELD_COUNT = 8;
+
+    /** Number of characters in the ID page. */
+    private static final int ID_LENGTH = 9;
+
+    /** Characters of hint text in each hint page. */
+    private static final int HINT_PAGE_LENGTH = 6;
+
+    /** Longest possible hint, every programmable page holding part of it. */
+    private static final int HINT_CAPACITY = (PAGE_PROG_MAX - PAGE_PROG_MIN + 1) * HINT_PAGE_LENGTH;
+
+    private final PageRequester mRequester;
+
+    private String mID = "";
+    private long mPIN = 0;
+    private int mTotalPages = 1;
+    private int mLatitude = 0;
+    private int mLongitude = 0;
+    private String mHint = "";
+    private int mLoggedVisits = 0;
+    private long mLastVisit = 0;
+    private byte mLoggedVisitsPage = -1;
+    private long mAuthToken = 0;
+
+    /** Bit n set once page n has been decoded. */
+    private long mReceivedPages = 0;
+
+    /** Bit n set if page n is part of the hint. */
+    private long mHintPages = 0;
+
+    /** Hint fragments by page, HINT_PAGE_LENGTH characters from (page - PAGE_PROG_MIN) * HINT_PAGE_LENGTH */
+    private final char[] mHintFragments = new char[HINT_CAPACITY];
+    private final byte[] mHintFragmentLengths = new byte[PAGE_PROG_MAX - PAGE_PROG_MIN + 1];
+
+    /** The fragments joined up, as far as they are contiguous */
+    private final char[] mHintText = new char[HINT_CAPACITY];
+
+    /** Payload of the last copy of each page, the 7 bytes after the page number. */
+    private final long[] mFingerprints = new long[64];
+
+    /** Set while decoding saved pages, which must not request any. */
+    private boolean mRestoring = false;
+
+    /** Bumped whenever a field changes. */
+    private final int[] mFieldVersions = new int[FIELD_COUNT];
+
+    /** Bit FIELD_x set if the last decodePage changed that field. */
+    private int mChangedFields = 0;
+
+    public GeocacheDecoder(PageRequester requester)
+    {
+        mRequester = requester;
+    }
+
+    public String getID()
+    {
+        return mID;
+    }
+
+    public long getPIN()
+    {
+        return mPIN;
+    }
+
+    public int getTotalPages()
+    {
+        return mTotalPages;
+    }
+
+    public int getLatitude()
+    {
+        return mLatitude;
+    }
+
+    public int getLongitude()
+    {
+        return mLongitude;
+    }
+
+    public String getHint()
+    {
+        return mHint;
+    }
+
+    public int getLoggedVisits()
+    {
+        return mLoggedVisits;
+    }
+
+    /**
+     * @return time of the last logged visit, seconds since the ANT epoch
+     *         (1989-12-31 00:00 UTC)
+     */
+    public long getLastVisit()
+    {
+        return mLastVisit;
+    }
+
+    /**
+     * @return the programmable page holding the logged visits, -1 if none
+     *         has been received
+     */
+    public byte getLoggedVisitsPage()
+    {
+        return mLoggedVisitsPage;
+    }
+
+    /**
+     * @return the token from the last authentication page, 7 bytes
+     */
+    public long getAuthToken()
+    {
+        return mAuthToken;
+    }
+
+    /**
+     * Treats a page as not received, so that its next copy is decoded
+     * even if nothing in it changed, e.g. to read back a page just written.
+     */
+    public void forgetPage(int page)
+    {
+        mReceivedPages &= ~(1L << page);
+    }
+
+    /**
+     * Forgets everything decoded so far, ready to read another record.
+     */
+    public void reset()
+    {
+        mID = "";
+        mPIN = 0;
+        mTotalPages = 1;
+        mLatitude = 0;
+        mLongitude = 0;
+        mHint = "";
+        mLoggedVisits = 0;
+        mLastVisit = 0;
+        mLoggedVisitsPage = -1;
+        mAuthToken = 0;
+        mReceivedPages = 0;
+        mHintPages = 0;
+        for(int i = 0; i < FIELD_COUNT; i++)
+            mFieldVersions[i]++;
+    }
+
+    /**
+     * @return FIELD_x bits of the fields the last decodePage changed, 0 if
+     *         it was a repeat of a page already decoded
+     */
+    public int getChangedFields()
+    {
+        return mChangedFields;
+    }
+
+    /**
+     * @return a number that changes whenever the field does
+     */
+    public int getFieldVersion(int field)
+    {
+        return mFieldVersions[field];
+    }
+
+    /**
+     * Writes the pages decoded so far, for restore(). The authentication
+     * page only holds for the session it was read in, so it is left out.
+     */
+    public void save(DataOutput out) throws IOException
+    {
+        long pages = mReceivedPages & ~(1L << PAGE_AUTH);
+        out.writeLong(pages);
+        for(int page = 0; page < 64; page++)
+        {
+            if((pages & (1L << page)) != 0)
+                out.writeLong(mFingerprints[page]);
+        }
+    }
+
+    /**
+     * Forgets everything, then decodes the pages written by save() again.
+     */
+    public void restore(DataInput in) throws IOException
+    {
+        reset();
+        long pages = in.readLong();
+        byte[] message = new byte[8];
+        for(int page = 0; page < 64; page++)
+        {
+            if((pages & (1L << page)) == 0)
+                continue;
+            long fingerprint = in.readLong();
+            message[0] = (byte) page;
+            for(int i = 7; i > 0; i--)
+            {
+                message[i] = (byte) fingerprint;
+                fingerprint >>>= 8;
+            }
+            restorePage(message, 0);
+        }
+    }
+
+    /**
+     * Decodes a page saved earlier. Unlike decodePage(), requests no
+     * follow-up pages, as there may be no channel to request them on.
+     */
+    public byte restorePage(byte[] message, int offset)
+    {
+        mRestoring = true;
+        try
+        {
+            return decodePage(message, offset);
+        }
+        finally
+        {
+            mRestoring = false;
+        }
+    }
+
+    public boolean hasPage(int page)
+    {
+        return (mReceivedPages & (1L << page)) != 0;
+    }
+
+    /**
+     * @return how many different pages have been decoded, repeats counted once
+     */
+    public int getReceivedPageCount()
+    {
+        return Long.bitCount(mReceivedPages);
+    }
+
+    /**
+     * True once the ID and PIN pages and every programmable page the PIN
+     * page announced have been decoded.
+     */
+    public boolean isComplete()
+    {
+        if(!hasPage(PAGE_ID) || !hasPage(PAGE_PIN))
+            return false;
+        for(int i = PAGE_PIN+1; i < mTotalPages; i++)
+        {
+            if(!hasPage(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes one 8 byte data page.
+     *
+     * @param message buffer holding the page
+     * @param offset index of the page number byte within message
+     * @return the page number that was decoded
+     */
+    public byte decodePage(byte[] message, int offset)
+    {
+        byte pageNum = message[offset];
+        mChangedFields = 0;
+        if(pageNum >= 0 && pageNum < 64)
+        {
+            // Caches repeat the same pages over and over; skip decoding a copy we already have
+            long fingerprint = fingerprint(message, offset+1);
+            if(hasPage(pageNum) && mFingerprints[pageNum] == fingerprint)
+            {
+                requestMissingPages(pageNum);
+                return pageNum;
+            }
+            mFingerprints[pageNum] = fingerprint;
+        }
+
+        if(pageNum >= PAGE_PROG_MIN && pageNum <= PAGE_PROG_MAX)
+        {
+            byte dataId = message[offset+1];
+            mHintPages &= ~(1L << pageNum);
+            switch(dataId)
+            {
+            case PROG_LATITUDE:
+                int latitude = getInt(message, offset+2);
+                if(latitude != mLatitude)
+                {
+                    mLatitude = latitude;
+                    changed(FIELD_LATITUDE);
+                }
+                break;
+            case PROG_LONGITUDE:
+                int longitude = getInt(message, offset+2);
+                if(longitude != mLongitude)
+                {
+                    mLongitude = longitude;
+                    changed(FIELD_LONGITUDE);
+                }
+                break;
+            case PROG_HINT:
+                decodeHint(pageNum, message, offset+2);
+                break;
+            case PROG_LOGGED_VISITS:
+                mLoggedVisitsPage = pageNum;
+                decodeLoggedVisits(message, offset+2);
+                break;
+            }
+        }
+        else if(pageNum == PAGE_ID)
+        {
+            String id = decodeAscii6(message, offset+1, ID_LENGTH);
+            if(!id.equals(mID))
+            {
+                mID = id;
+                changed(FIELD_ID);
+            }
+            requestMissingPages(PAGE_ID);
+        }
+        else if(pageNum == PAGE_PIN)
+        {
+            decodePIN(message, offset+1);
+        }
+        else if(pageNum == PAGE_AUTH)
+        {
+            decodeAuth(message, offset+1);
+        }
+        if(pageNum >= 0 && pageNum < 64)
+            mReceivedPages |= 1L << pageNum;
+        // Any programmable page can close a gap in the hint, not just hint pages
+        if(pageNum >= PAGE_PROG_MIN && pageNum <= PAGE_PROG_MAX)
+            assembleHint();
+        return pageNum;
+    }
+
+    private void decodePIN(byte[] message, int offset)
+    {
+        long pin = getInt(message, offset+1);
+        if(pin != mPIN)
+        {
+            mPIN = pin;
+            changed(FIELD_PIN);
+        }
+        int totalPages = message[offset+5] & 0xFF;
+        if(totalPages != mTotalPages)
+        {
+            mTotalPages = totalPages;
+            changed(FIELD_TOTAL_PAGES);
+        }
+
+        requestMissingPages(PAGE_PIN);
+    }
+
+    /**
+     * Asks for the pages an ID or PIN page leads to that haven't arrived
+     * yet, whether the page is new or a repeat. Pages already held are
+     * never asked for again.
+     */
+    private void requestMissingPages(byte pageNum)
+    {
+        if(pageNum == PAGE_ID)
+        {
+            if(!hasPage(PAGE_PIN))
+                requestPage(PAGE_PIN);
+        }
+        else if(pageNum == PAGE_PIN)
+        {
+            for(int i = PAGE_PIN+1; i < mTotalPages; i++)
+            {
+                if(!hasPage(i))
+                    requestPage((byte) i);
+            }
+        }
+    }
+
+    private void requestPage(byte page)
+    {
+        if(!mRestoring)
+            mRequester.requestPage(page);
+    }
+
+    private void changed(int field)
+    {
+        mChangedFields |= 1 << field;
+        mFieldVersions[field]++;
+    }
+
+    /**
+     * Packs the 7 payload bytes of a page into a long, so comparing two
+     * copies of a page is exact.
+     */
+    private static long fingerprint(byte[] message, int offset)
+    {
+        long fingerprint = 0;
+        for(int i = 0; i < 7; i++)
+            fingerprint = (fingerprint << 8) | (message[offset+i] & 0xFF);
+        return fingerprint;
+    }
+
+    /**
+     * Stores one page of hint text. Pages may come in any order; the text
+     * is joined up by assembleHint().
+     */
+    private void decodeHint(byte pageNum, byte[] message, int offset)
+    {
+        int slot = pageNum - PAGE_PROG_MIN;
+        int start = slot * HINT_PAGE_LENGTH;
+        int length = 0;
+        // Null padded when the hint doesn't fill the page
+        while(length < HINT_PAGE_LENGTH && message[offset+length] != 0)
+        {
+            mHintFragments[start+length] = (char) (message[offset+length] & 0xFF);
+            length++;
+        }
+        mHintFragmentLengths[slot] = (byte) length;
+        mHintPages |= 1L << pageNum;
+    }
+
+    /**
+     * Joins the hint pages received so far, in page order, up to the first
+     * page that hasn't arrived yet. That prefix of the hint is final, so it
+     * can be shown straight away; a String is only made when it grows or
+     * changes.
+     */
+    private void assembleHint()
+    {
+        int lastPage = hasPage(PAGE_PIN) ? mTotalPages - 1 : PAGE_PROG_MAX;
+        int length = 0;
+        boolean changed = false;
+        for(int page = PAGE_PROG_MIN; page <= lastPage && page <= PAGE_PROG_MAX; page++)
+        {
+            if(!hasPage(page))
+                break;
+            if((mHintPages & (1L << page)) == 0)
+                continue;
+            int slot = page - PAGE_PROG_MIN;
+            int start = slot * HINT_PAGE_LENGTH;
+            for(int i = 0; i < mHintFragmentLengths[slot]; i++)
+            {
+                char c = mHintFragments[start+i];
+                if(length >= mHint.length() || mHint.charAt(length) != c)
+                    changed = true;
+                mHintText[length++] = c;
+            }
+        }
+        if(changed || length != mHint.length())
+        {
+            mHint = new String(mHintText, 0, length);
+            changed(FIELD_HINT);
+        }
+    }
+
+    private void decodeLoggedVisits(byte[] message, int offset)
+    {
+        long lastVisit = getInt(message, offset) & 0xFFFFFFFFL;
+        int visits = (message[offset+4] & 0xFF) | ((message[offset+5] & 0xFF) << 8);
+        if(lastVisit != mLastVisit || visits != mLoggedVisits)
+        {
+            mLastVisit = lastVisit;
+            mLoggedVisits = visits;
+            changed(FIELD_LOGGED_VISITS);
+        }
+    }
+
+    private void decodeAuth(byte[] message, int offset)
+    {
+        // The cache's answer to our nonce, bytes 1-7
+        long token = fingerprint(message, offset);
+        if(token != mAuthToken)
+        {
+            mAuthToken = token;
+            changed(FIELD_AUTH);
+        }
+    }
+
+    /**
+     * Reads a little endian 32 bit integer without wrapping the buffer.
+     */
+    static int getInt(byte[] b, int offset)
+    {
+        return (b[offset] & 0xFF)
+                | ((b[offset+1] & 0xFF) << 8)
+                | ((b[offset+2] & 0xFF) << 16)
+                | ((b[offset+3] & 0xFF) << 24);
+    }
+
+    static String decodeAscii6(byte[] str, int offset, int length)
+    {
+        byte[] chars = new byte[length];
+        for(int i = 0; i < chars.length; i++)
+        {
+            int left = 6*i;
+            byte leftByte = str[offset + left/8];
+            byte rightByte = str[offset + (left+5)/8];
+            int nLeftBits = (2*i)%8;
+            int nRightBits = 6-nLeftBits;
+            byte leftMask = (byte) (0x3F >> nRightBits);
+            byte leftBits = (byte) ((leftByte & leftMask) << nRightBits);
+            byte rightBits = (byte) ((rightByte & 0xFF) >> 2+nLeftBits);
+            chars[i] = (byte) ((leftBits | rightBits) + 0x20);
+        }
+        try
+        {
+            // US-ASCII is a 7-bit encoding scheme, so to simplify a bit, we
+            // translate to 8-bit then decode with UTF-8 which is compatible
+            // with ASCII8.
+            return new String(chars, "UTF-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            return "";
+        }
+    }
+}
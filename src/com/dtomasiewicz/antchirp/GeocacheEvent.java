@@ -0,0 +1,71 @@
+package com.dtomasiewicz.antchirp;
+
+import com.dtomasiewicz.antchirp.AntPlusManager.ChannelStates;
+
+/**
+ * Something that happened on the radio, as published by AntPlusManager.getEvents().
+ */
+public class GeocacheEvent
+{
+    public enum Type
+    {
+        /** A channel moved to another state; see channel and state */
+        CHANNEL_STATE,
+        
+        /** A Geocache data page was decoded; see channel and page */
+        PAGE,
+        
+        /** A complete Geocache record was read; see record */
+        RECORD,
+        
+        /** Communicating with the radio failed; see message */
+        ERROR
+    }
+    
+    public final Type type;
+    
+    /** When it happened, SystemClock.elapsedRealtime() (ms) */
+    public final long time;
+    
+    public byte channel;
+    public ChannelStates state;
+    public byte page;
+    public GeocacheRecord record;
+    public String message;
+    
+    private GeocacheEvent(Type type, long time)
+    {
+        this.type = type;
+        this.time = time;
+    }
+    
+    public static GeocacheEvent channelState(long time, byte channel, ChannelStates state)
+    {
+        GeocacheEvent e = new GeocacheEvent(Type.CHANNEL_STATE, time);
+        e.channel = channel;
+        e.state = state;
+        return e;
+    }
+    
+    public static GeocacheEvent page(long time, byte channel, byte page)
+    {
+        GeocacheEvent e = new GeocacheEvent(Type.PAGE, time);
+        e.channel = channel;
+        e.page = page;
+        return e;
+    }
+    
+    public static GeocacheEvent record(long time, GeocacheRecord record)
+    {
+        GeocacheEvent e = new GeocacheEvent(Type.RECORD, time);
+        e.record = record;
+        return e;
+    }
+    
+    public static GeocacheEvent error(long time, String message)
+    {
+        GeocacheEvent e = new GeocacheEvent(Type.ERROR, time);
+        e.message = message;
+        return e;
+    }
+}
@@ -0,0 +1,496 @@
+package com.dtomasiewicz.antchirp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of what has to outlive the process: visits not yet
+ * written back to their cache, and collected records.
+ *
+ * Each entry is framed with its length and a checksum, so an entry torn by
+ * a crash is found on replay and cut off. Appending only copies the entry
+ * into a buffer. A writer thread commits whatever is buffered with one
+ * write and one fsync, COMMIT_DELAY after the first entry of a group, so a
+ * burst of entries costs a single fsync. The same thread opens the file,
+ * rewriting it with just the live entries once it has outgrown
+ * COMPACT_SIZE, so no file I/O happens on the caller's thread.
+ */
+public class GeocacheJournal
+{
+    /** Receives the live entries when the journal is opened. */
+    public interface Replayer
+    {
+        /** A visit not yet written back to its cache. */
+        public void visit(String cacheId, int deviceNumber, long time);
+
+        public void record(GeocacheRecord record);
+    }
+
+    private static final byte TYPE_VISIT = 1;
+    private static final byte TYPE_SYNCED = 2;
+    private static final byte TYPE_RECORD = 3;
+
+    /** How long entries are collected into one commit (ms). */
+    private static final long COMMIT_DELAY = 200;
+
+    /** Buffered bytes that commit without waiting out COMMIT_DELAY. */
+    private static final int COMMIT_SIZE = 4096;
+
+    private static final long COMPACT_SIZE = 64 * 1024;
+
+    /** Records kept over a compaction, as many as GeocacheStore keeps. */
+    private static final int RECORD_CAPACITY = 256;
+
+    private final File mFile;
+
+    private FileOutputStream mOut;
+
+    private Thread mWriter;
+
+    /** Framed entries waiting for the next commit, guarded by this. */
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+
+    private final ByteArrayOutputStream mEntry = new ByteArrayOutputStream();
+    private final DataOutputStream mEntryOut = new DataOutputStream(mEntry);
+
+    private boolean mClosed = false;
+
+    private IOException mError;
+
+    private int mEntries = 0;
+    private int mCommits = 0;
+
+    public GeocacheJournal(File file)
+    {
+        mFile = file;
+    }
+
+    /**
+     * Reads the file in the background and replays its live entries on
+     * callbackExecutor. Entries appended meanwhile are committed once it is
+     * open. If it can't be read, nothing is replayed or kept and getError()
+     * says why.
+     *
+     * @param onReplayed run on callbackExecutor after the last entry is replayed
+     */
+    public synchronized void open(final Replayer replayer, final Runnable onReplayed, final Executor callbackExecutor)
+    {
+        mWriter = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                final List<byte[]> live = new ArrayList<byte[]>();
+                boolean opened = load(live);
+                callbackExecutor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        for(byte[] payload : live)
+                        {
+                            try
+                            {
+                                replay(payload, replayer);
+                            }
+                            catch(IOException e)
+                            {
+                                setError(e); // Checksummed, so only from a bug
+                            }
+                        }
+                        onReplayed.run();
+                    }
+                });
+                if(opened)
+                    commitLoop();
+            }
+        }, "GeocacheJournal");
+        mWriter.start();
+    }
+
+    public void appendVisit(String cacheId, int deviceNumber, long time)
+    {
+        synchronized(this)
+        {
+            try
+            {
+                mEntryOut.writeByte(TYPE_VISIT);
+                mEntryOut.writeUTF(cacheId);
+                mEntryOut.writeInt(deviceNumber);
+                mEntryOut.writeLong(time);
+            }
+            catch(IOException e)
+            {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            append();
+        }
+    }
+
+    /**
+     * Marks the oldest visits of a cache as written back to it.
+     */
+    public void appendSynced(String cacheId, int visits)
+    {
+        synchronized(this)
+        {
+            try
+            {
+                mEntryOut.writeByte(TYPE_SYNCED);
+                mEntryOut.writeUTF(cacheId);
+                mEntryOut.writeInt(visits);
+            }
+            catch(IOException e)
+            {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            append();
+        }
+    }
+
+    /**
+     * @param record numbered by GeocacheStore.add() already, so that it
+     *        keeps its number over a restart
+     */
+    public void appendRecord(GeocacheRecord record)
+    {
+        synchronized(this)
+        {
+            try
+            {
+                mEntryOut.writeByte(TYPE_RECORD);
+                mEntryOut.writeLong(record.sequence);
+                mEntryOut.writeLong(record.time);
+                mEntryOut.writeInt(record.deviceNumber);
+                mEntryOut.writeUTF(record.id);
+                mEntryOut.writeLong(record.pin);
+                mEntryOut.writeInt(record.latitude);
+                mEntryOut.writeInt(record.longitude);
+                mEntryOut.writeUTF(record.hint);
+                mEntryOut.writeInt(record.loggedVisits);
+            }
+            catch(IOException e)
+            {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            append();
+        }
+    }
+
+    /**
+     * Commits what is buffered and stops the writer.
+     */
+    public void close()
+    {
+        Thread writer;
+        synchronized(this)
+        {
+            mClosed = true;
+            notifyAll();
+            writer = mWriter;
+        }
+        if(writer == null)
+            return;
+        try
+        {
+            writer.join();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if(mOut == null)
+            return; // Never opened
+        try
+        {
+            mOut.close();
+        }
+        catch(IOException e)
+        {
+            setError(e);
+        }
+    }
+
+    /**
+     * @return the last write that failed, null if none did
+     */
+    public synchronized IOException getError()
+    {
+        return mError;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return mEntries;
+    }
+
+    /** @return number of fsyncs so far */
+    public synchronized int getCommitCount()
+    {
+        return mCommits;
+    }
+
+    /** Frames the entry in mEntry into mBuffer. Call holding the lock. */
+    private void append()
+    {
+        byte[] payload = mEntry.toByteArray();
+        mEntry.reset();
+        if(mWriter == null || mClosed)
+            return; // Not open
+        try
+        {
+            frame(new DataOutputStream(mBuffer), payload);
+        }
+        catch(IOException e)
+        {
+            // Not thrown by a ByteArrayOutputStream
+        }
+        mEntries++;
+        notifyAll();
+    }
+
+    private void commitLoop()
+    {
+        while(true)
+        {
+            byte[] group;
+            synchronized(this)
+            {
+                try
+                {
+                    while(mBuffer.size() == 0 && !mClosed)
+                        wait();
+                    // Let the rest of the group arrive
+                    long deadline = System.currentTimeMillis() + COMMIT_DELAY;
+                    long left = COMMIT_DELAY;
+                    while(!mClosed && mBuffer.size() < COMMIT_SIZE && left > 0)
+                    {
+                        wait(left);
+                        left = deadline - System.currentTimeMillis();
+                    }
+                }
+                catch(InterruptedException e)
+                {
+                    mClosed = true;
+                }
+                if(mBuffer.size() == 0)
+                    return; // Closed with nothing left
+                group = mBuffer.toByteArray();
+                mBuffer.reset();
+            }
+            try
+            {
+                mOut.write(group);
+                mOut.getFD().sync();
+                synchronized(this)
+                {
+                    mCommits++;
+                }
+            }
+            catch(IOException e)
+            {
+                setError(e);
+            }
+        }
+    }
+
+    /**
+     * Reads the live entries into live and opens the file for appending.
+     * Runs on the writer thread.
+     *
+     * @return false if it couldn't, in which case nothing more is kept
+     */
+    private boolean load(List<byte[]> live)
+    {
+        try
+        {
+            // Visits by cache, oldest first, less those since synced; the latest records
+            LinkedHashMap<String, LinkedList<byte[]>> visits = new LinkedHashMap<String, LinkedList<byte[]>>();
+            LinkedList<byte[]> records = new LinkedList<byte[]>();
+            long good = mFile.exists() ? read(visits, records) : 0;
+            for(LinkedList<byte[]> cache : visits.values())
+                live.addAll(cache);
+            live.addAll(records);
+
+            if(good > COMPACT_SIZE)
+            {
+                rewrite(live);
+            }
+            else if(good < mFile.length())
+            {
+                // Drop a torn entry from a crash mid-write
+                RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                try
+                {
+                    file.setLength(good);
+                }
+                finally
+                {
+                    file.close();
+                }
+            }
+            mOut = new FileOutputStream(mFile, true);
+            return true;
+        }
+        catch(IOException e)
+        {
+            live.clear();
+            synchronized(this)
+            {
+                mError = e;
+                mClosed = true;
+                mBuffer.reset();
+            }
+            return false;
+        }
+    }
+
+    private synchronized void setError(IOException e)
+    {
+        mError = e;
+    }
+
+    /**
+     * Reads every intact entry, applying syncs to the visits they cover.
+     *
+     * @return length of the intact part of the file
+     */
+    private long read(LinkedHashMap<String, LinkedList<byte[]>> visits, LinkedList<byte[]> records) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        long good = 0;
+        try
+        {
+            while(true)
+            {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if(length <= 0 || length > COMPACT_SIZE)
+                    break;
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if(checksum(payload) != checksum)
+                    break;
+                good += 8 + length;
+
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(payload));
+                byte type = entry.readByte();
+                if(type == TYPE_VISIT)
+                {
+                    String cacheId = entry.readUTF();
+                    LinkedList<byte[]> cache = visits.get(cacheId);
+                    if(cache == null)
+                    {
+                        cache = new LinkedList<byte[]>();
+                        visits.put(cacheId, cache);
+                    }
+                    cache.add(payload);
+                }
+                else if(type == TYPE_SYNCED)
+                {
+                    String cacheId = entry.readUTF();
+                    int count = entry.readInt();
+                    LinkedList<byte[]> cache = visits.get(cacheId);
+                    if(cache == null)
+                        continue;
+                    for(; count > 0 && !cache.isEmpty(); count--)
+                        cache.removeFirst();
+                    if(cache.isEmpty())
+                        visits.remove(cacheId);
+                }
+                else if(type == TYPE_RECORD)
+                {
+                    records.add(payload);
+                    if(records.size() > RECORD_CAPACITY)
+                        records.removeFirst();
+                }
+            }
+        }
+        catch(EOFException e)
+        {
+            // End of the file, or of a torn entry
+        }
+        finally
+        {
+            in.close();
+        }
+        return good;
+    }
+
+    private static void replay(byte[] payload, Replayer replayer) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if(type == TYPE_VISIT)
+        {
+            String cacheId = in.readUTF();
+            int deviceNumber = in.readInt();
+            replayer.visit(cacheId, deviceNumber, in.readLong());
+        }
+        else if(type == TYPE_RECORD)
+        {
+            GeocacheRecord record = new GeocacheRecord();
+            record.sequence = in.readLong();
+            record.time = in.readLong();
+            record.deviceNumber = in.readInt();
+            record.id = in.readUTF();
+            record.pin = in.readLong();
+            record.latitude = in.readInt();
+            record.longitude = in.readInt();
+            record.hint = in.readUTF();
+            record.loggedVisits = in.readInt();
+            replayer.record(record);
+        }
+    }
+
+    /**
+     * Replaces the file with one holding only the given entries.
+     */
+    private void rewrite(List<byte[]> live) throws IOException
+    {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            for(byte[] payload : live)
+                frame(data, payload);
+            data.flush();
+            out.getFD().sync();
+        }
+        finally
+        {
+            out.close();
+        }
+        if(!tmp.renameTo(mFile))
+            throw new IOException("Could not replace " + mFile);
+    }
+
+    private static void frame(DataOutputStream out, byte[] payload) throws IOException
+    {
+        out.writeInt(payload.length);
+        out.writeInt(checksum(payload));
+        out.write(payload);
+    }
+
+    private static int checksum(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+}
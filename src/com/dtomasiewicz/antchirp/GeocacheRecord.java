@@ -0,0 +1,81 @@
+package com.dtomasiewicz.antchirp;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * One complete read of a geocache, as handed to other apps.
+ */
+public class GeocacheRecord implements Parcelable
+{
+    /** Position in the order records were collected, assigned by GeocacheStore */
+    public long sequence;
+    
+    /** When the record was completed (ms since epoch) */
+    public long time;
+    
+    public int deviceNumber;
+    public String id;
+    public long pin;
+    public int latitude;
+    public int longitude;
+    public String hint;
+    public int loggedVisits;
+    
+    public GeocacheRecord()
+    {
+    }
+    
+    public GeocacheRecord(long time, short deviceNumber, GeocacheDecoder decoder)
+    {
+        this.time = time;
+        this.deviceNumber = deviceNumber & 0xFFFF;
+        id = decoder.getID();
+        pin = decoder.getPIN();
+        latitude = decoder.getLatitude();
+        longitude = decoder.getLongitude();
+        hint = decoder.getHint();
+        loggedVisits = decoder.getLoggedVisits();
+    }
+    
+    public int describeContents()
+    {
+        return 0;
+    }
+    
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeLong(sequence);
+        dest.writeLong(time);
+        dest.writeInt(deviceNumber);
+        dest.writeString(id);
+        dest.writeLong(pin);
+        dest.writeInt(latitude);
+        dest.writeInt(longitude);
+        dest.writeString(hint);
+        dest.writeInt(loggedVisits);
+    }
+    
+    public static final Parcelable.Creator<GeocacheRecord> CREATOR = new Parcelable.Creator<GeocacheRecord>()
+    {
+        public GeocacheRecord createFromParcel(Parcel source)
+        {
+            GeocacheRecord r = new GeocacheRecord();
+            r.sequence = source.readLong();
+            r.time = source.readLong();
+            r.deviceNumber = source.readInt();
+            r.id = source.readString();
+            r.pin = source.readLong();
+            r.latitude = source.readInt();
+            r.longitude = source.readInt();
+            r.hint = source.readString();
+            r.loggedVisits = source.readInt();
+            return r;
+        }
+        
+        public GeocacheRecord[] newArray(int size)
+        {
+            return new GeocacheRecord[size];
+        }
+    };
+}
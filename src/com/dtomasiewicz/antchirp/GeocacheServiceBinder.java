@@ -0,0 +1,120 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.List;
+
+import android.os.Handler;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+
+/**
+ * IGeocacheService for other apps, reading from a GeocacheStore.
+ *
+ * Subscribers aren't called once per record: a new record schedules one
+ * delivery COALESCE_DELAY later, which sends each subscriber everything
+ * after the last record it was sent, MAX_BATCH records per call.
+ */
+public class GeocacheServiceBinder extends IGeocacheService.Stub implements GeocacheStore.Listener
+{
+    /** Most records returned or delivered in one call */
+    private static final int MAX_BATCH = 64;
+    
+    /** How long new records are collected before delivery (ms) */
+    private static final long COALESCE_DELAY = 500;
+    
+    private final GeocacheStore mStore;
+    
+    /** Delivers to subscribers; only this handler's thread touches the cookies */
+    private final Handler mHandler;
+    
+    /** Subscribers, each with a long[1] cookie holding the last sequence sent to it */
+    private final RemoteCallbackList<IGeocacheListener> mListeners = new RemoteCallbackList<IGeocacheListener>();
+    
+    private boolean mDeliveryPending = false;
+    
+    private final Runnable mDeliver = new Runnable()
+    {
+        public void run()
+        {
+            mDeliveryPending = false;
+            deliver();
+        }
+    };
+    
+    public GeocacheServiceBinder(GeocacheStore store, Handler handler)
+    {
+        mStore = store;
+        mHandler = handler;
+        mStore.setListener(this);
+    }
+    
+    public List<GeocacheRecord> getRecordsSince(long sequence, int max)
+    {
+        return mStore.since(sequence, Math.min(max, MAX_BATCH));
+    }
+    
+    public long getLatestSequence()
+    {
+        return mStore.getLatestSequence();
+    }
+    
+    public void subscribe(IGeocacheListener listener, long sinceSequence)
+    {
+        mListeners.register(listener, new long[] {sinceSequence});
+        // Send the backlog right away
+        mHandler.post(mDeliver);
+    }
+    
+    public void unsubscribe(IGeocacheListener listener)
+    {
+        mListeners.unregister(listener);
+    }
+    
+    public void onRecordAdded(GeocacheRecord record)
+    {
+        mHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                if(!mDeliveryPending)
+                {
+                    mDeliveryPending = true;
+                    mHandler.postDelayed(mDeliver, COALESCE_DELAY);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Stops deliveries, for when the service is going away.
+     */
+    public void close()
+    {
+        mStore.setListener(null);
+        mHandler.removeCallbacks(mDeliver);
+        mListeners.kill();
+    }
+    
+    private void deliver()
+    {
+        int count = mListeners.beginBroadcast();
+        for(int i = 0; i < count; i++)
+        {
+            long[] lastSent = (long[]) mListeners.getBroadcastCookie(i);
+            try
+            {
+                List<GeocacheRecord> batch = mStore.since(lastSent[0], MAX_BATCH);
+                while(!batch.isEmpty())
+                {
+                    mListeners.getBroadcastItem(i).onRecords(batch);
+                    lastSent[0] = batch.get(batch.size() - 1).sequence;
+                    batch = mStore.since(lastSent[0], MAX_BATCH);
+                }
+            }
+            catch(RemoteException e)
+            {
+                // Dead subscriber, RemoteCallbackList drops it
+            }
+        }
+        mListeners.finishBroadcast();
+    }
+}
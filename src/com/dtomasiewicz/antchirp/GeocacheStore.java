@@ -0,0 +1,81 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent geocache records, numbered in the order they were
+ * collected so that readers can ask for everything after the last one
+ * they saw. Numbers are kept in the journal with the records, so they
+ * carry on over a restart rather than starting again from 1.
+ */
+public class GeocacheStore
+{
+    /** Told when a record has been added. */
+    public interface Listener
+    {
+        public void onRecordAdded(GeocacheRecord record);
+    }
+
+    /** Records kept; older ones are dropped. */
+    private static final int CAPACITY = 256;
+
+    private final List<GeocacheRecord> mRecords = new ArrayList<GeocacheRecord>();
+
+    private long mLastSequence = 0;
+
+    private Listener mListener;
+
+    public synchronized void setListener(Listener listener)
+    {
+        mListener = listener;
+    }
+
+    public void add(GeocacheRecord record)
+    {
+        Listener listener;
+        synchronized(this)
+        {
+            record.sequence = ++mLastSequence;
+            if(mRecords.size() == CAPACITY)
+                mRecords.remove(0);
+            mRecords.add(record);
+            listener = mListener;
+        }
+        if(listener != null)
+            listener.onRecordAdded(record);
+    }
+
+    /**
+     * Puts back a record replayed from the journal, keeping its sequence
+     * number. One out of order, e.g. behind a record added before the
+     * journal was replayed, gets the next one. Nobody is told.
+     */
+    public synchronized void restore(GeocacheRecord record)
+    {
+        if(record.sequence <= mLastSequence)
+            record.sequence = mLastSequence + 1;
+        mLastSequence = record.sequence;
+        if(mRecords.size() == CAPACITY)
+            mRecords.remove(0);
+        mRecords.add(record);
+    }
+
+    public synchronized long getLatestSequence()
+    {
+        return mLastSequence;
+    }
+
+    /**
+     * @return up to max records after sequence, oldest first
+     */
+    public synchronized List<GeocacheRecord> since(long sequence, int max)
+    {
+        // Numbers rise, but a record lost from the journal leaves a gap
+        int first = mRecords.size();
+        while(first > 0 && mRecords.get(first - 1).sequence > sequence)
+            first--;
+        int end = Math.min(mRecords.size(), first + Math.max(0, max));
+        return new ArrayList<GeocacheRecord>(mRecords.subList(first, end));
+    }
+}
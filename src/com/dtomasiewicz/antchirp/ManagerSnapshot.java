@@ -0,0 +1,143 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Bundle;
+
+import com.dtomasiewicz.antchirp.AntPlusManager.ChannelStates;
+
+/**
+ * Everything the UI shows, copied out of AntPlusManager in one go so that
+ * it can cross to another process as a single Bundle.
+ */
+public class ManagerSnapshot
+{
+    // Bundle keys, kept short as they are sent with every snapshot
+    private static final String KEY_ANT_STATE_TEXT = "t";
+    private static final String KEY_ANT_USABLE = "u";
+    private static final String KEY_ENABLED = "e";
+    private static final String KEY_SERVICE_CONNECTED = "c";
+    private static final String KEY_GEO_STATE = "s";
+    private static final String KEY_SCANNING = "sc";
+    private static final String KEY_SCANNED_DEVICES = "sd";
+    private static final String KEY_SCANNED_RSSI = "sr";
+    private static final String KEY_DEVICE_NUMBER = "d";
+    private static final String KEY_PROXIMITY = "p";
+    private static final String KEY_BUFFER = "b";
+    private static final String KEY_GEO_ID = "gi";
+    private static final String KEY_GEO_PIN = "gp";
+    private static final String KEY_GEO_LATITUDE = "la";
+    private static final String KEY_GEO_LONGITUDE = "lo";
+    private static final String KEY_GEO_HINT = "gh";
+    private static final String KEY_GEO_VISITS = "gv";
+    private static final String KEY_GEO_PENDING = "gq";
+
+    public String antStateText = "";
+    public boolean antUsable = false;
+    public boolean enabled = false;
+    public boolean serviceConnected = false;
+    public ChannelStates geoState = ChannelStates.CLOSED;
+    public boolean scanning = false;
+    /** Device number and RSSI only */
+    public List<DeviceTable.Entry> scannedDevices = new ArrayList<DeviceTable.Entry>();
+    public short deviceNumberGEO = 0;
+    public byte proximityThreshold = 0;
+    public short bufferThreshold = 0;
+    public String geoID = "";
+    public long geoPIN = 0;
+    public int geoLatitude = 0;
+    public int geoLongitude = 0;
+    public String geoHint = "";
+    public int geoLoggedVisits = 0;
+    public int geoPendingVisits = 0;
+
+    public static ManagerSnapshot of(AntPlusManager manager)
+    {
+        ManagerSnapshot s = new ManagerSnapshot();
+        // Also refreshes the state text
+        s.antUsable = manager.checkAntState();
+        s.antStateText = manager.getAntStateText();
+        s.enabled = manager.isEnabled();
+        s.serviceConnected = manager.isServiceConnected();
+        s.geoState = manager.getGeoState();
+        s.scanning = manager.isScanning();
+        s.scannedDevices = manager.getScannedDevices();
+        s.deviceNumberGEO = manager.getDeviceNumberGEO();
+        s.proximityThreshold = manager.getProximityThreshold();
+        s.bufferThreshold = manager.getBufferThreshold();
+        s.geoID = manager.getGeoID();
+        s.geoPIN = manager.getGeoPIN();
+        s.geoLatitude = manager.getGeoLatitude();
+        s.geoLongitude = manager.getGeoLongitude();
+        s.geoHint = manager.getGeoHint();
+        s.geoLoggedVisits = manager.getGeoLoggedVisits();
+        s.geoPendingVisits = manager.getGeoPendingVisits();
+        return s;
+    }
+
+    public Bundle toBundle()
+    {
+        Bundle b = new Bundle();
+        b.putString(KEY_ANT_STATE_TEXT, antStateText);
+        b.putBoolean(KEY_ANT_USABLE, antUsable);
+        b.putBoolean(KEY_ENABLED, enabled);
+        b.putBoolean(KEY_SERVICE_CONNECTED, serviceConnected);
+        b.putByte(KEY_GEO_STATE, (byte) geoState.ordinal());
+        b.putBoolean(KEY_SCANNING, scanning);
+        short[] devices = new short[scannedDevices.size()];
+        byte[] rssi = new byte[devices.length];
+        for(int i = 0; i < devices.length; i++)
+        {
+            devices[i] = scannedDevices.get(i).deviceNumber;
+            rssi[i] = scannedDevices.get(i).rssi;
+        }
+        b.putShortArray(KEY_SCANNED_DEVICES, devices);
+        b.putByteArray(KEY_SCANNED_RSSI, rssi);
+        b.putShort(KEY_DEVICE_NUMBER, deviceNumberGEO);
+        b.putByte(KEY_PROXIMITY, proximityThreshold);
+        b.putShort(KEY_BUFFER, bufferThreshold);
+        b.putString(KEY_GEO_ID, geoID);
+        b.putLong(KEY_GEO_PIN, geoPIN);
+        b.putInt(KEY_GEO_LATITUDE, geoLatitude);
+        b.putInt(KEY_GEO_LONGITUDE, geoLongitude);
+        b.putString(KEY_GEO_HINT, geoHint);
+        b.putInt(KEY_GEO_VISITS, geoLoggedVisits);
+        b.putInt(KEY_GEO_PENDING, geoPendingVisits);
+        return b;
+    }
+
+    public static ManagerSnapshot fromBundle(Bundle b)
+    {
+        ManagerSnapshot s = new ManagerSnapshot();
+        s.antStateText = b.getString(KEY_ANT_STATE_TEXT);
+        s.antUsable = b.getBoolean(KEY_ANT_USABLE);
+        s.enabled = b.getBoolean(KEY_ENABLED);
+        s.serviceConnected = b.getBoolean(KEY_SERVICE_CONNECTED);
+        s.geoState = ChannelStates.values()[b.getByte(KEY_GEO_STATE)];
+        s.scanning = b.getBoolean(KEY_SCANNING);
+        short[] devices = b.getShortArray(KEY_SCANNED_DEVICES);
+        byte[] rssi = b.getByteArray(KEY_SCANNED_RSSI);
+        if(devices != null && rssi != null)
+        {
+            for(int i = 0; i < devices.length && i < rssi.length; i++)
+            {
+                DeviceTable.Entry e = new DeviceTable.Entry();
+                e.deviceNumber = devices[i];
+                e.rssi = rssi[i];
+                s.scannedDevices.add(e);
+            }
+        }
+        s.deviceNumberGEO = b.getShort(KEY_DEVICE_NUMBER);
+        s.proximityThreshold = b.getByte(KEY_PROXIMITY);
+        s.bufferThreshold = b.getShort(KEY_BUFFER);
+        s.geoID = b.getString(KEY_GEO_ID);
+        s.geoPIN = b.getLong(KEY_GEO_PIN);
+        s.geoLatitude = b.getInt(KEY_GEO_LATITUDE);
+        s.geoLongitude = b.getInt(KEY_GEO_LONGITUDE);
+        s.geoHint = b.getString(KEY_GEO_HINT);
+        s.geoLoggedVisits = b.getInt(KEY_GEO_VISITS);
+        s.geoPendingVisits = b.getInt(KEY_GEO_PENDING);
+        return s;
+    }
+}
@@ -1,13 +1,19 @@
 package com.dtomasiewicz.antchirp;
 
+import java.util.Collections;
+import java.util.List;
+
 import com.dsi.ant.AntDefine;
 
 import android.app.Dialog;
 import android.content.Context;
 import android.os.Bundle;
 import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.ListView;
 import android.widget.TextView;
 
 public class PairingDialog extends Dialog
@@ -88,6 +94,39 @@ public class PairingDialog extends Dialog
    {
        ((Button) findViewById(R.id.dialog_button)).setEnabled(enabled);
        mInput.setEnabled(enabled);
+       mDevices.setEnabled(enabled);
+   }
+   
+   /**
+    * Lists the Geocaches in range to pair with in one tap, strongest
+    * first. A list the same as the one shown isn't redrawn.
+    */
+   public void setScannedDevices(List<DeviceTable.Entry> devices)
+   {
+      if(mDeviceAdapter == null)
+         return;
+      boolean same = devices.size() == mListedDevices.length;
+      for(int i = 0; same && i < mListedDevices.length; i++)
+         same = devices.get(i).deviceNumber == mListedDevices[i] && devices.get(i).rssi == mListedRssi[i];
+      if(same)
+         return;
+      
+      mListedDevices = new short[devices.size()];
+      mListedRssi = new byte[devices.size()];
+      mDeviceAdapter.setNotifyOnChange(false);
+      mDeviceAdapter.clear();
+      for(int i = 0; i < mListedDevices.length; i++)
+      {
+         DeviceTable.Entry device = devices.get(i);
+         mListedDevices[i] = device.deviceNumber;
+         mListedRssi[i] = device.rssi;
+         if(device.rssi == DeviceTable.RSSI_UNKNOWN)
+            mDeviceAdapter.add(String.valueOf(device.deviceNumber & 0xFFFF));
+         else
+            mDeviceAdapter.add(getContext().getString(R.string.Dialog_Scanned_Device, device.deviceNumber & 0xFFFF, device.rssi));
+      }
+      mDeviceAdapter.notifyDataSetChanged();
+      mDevices.setVisibility(mListedDevices.length > 0 ? View.VISIBLE : View.GONE);
    }
 
    private int mId;
@@ -96,6 +135,12 @@ public class PairingDialog extends Dialog
    private String mHint;
    private PairingListener mPairingListener;
    private EditText mInput;
+   private ListView mDevices;
+   private ArrayAdapter<String> mDeviceAdapter;
+   
+   /** Device numbers and RSSI of the caches listed, in list order */
+   private short[] mListedDevices = new short[0];
+   private byte[] mListedRssi = new byte[0];
      
    
    public PairingDialog(Context context, int id, short deviceNumber, String hint, PairingListener pairingListener)
@@ -151,6 +196,15 @@ public class PairingDialog extends Dialog
          }
          mInput.setHint(mHint);
          
+         mDevices = (ListView) findViewById(R.id.dialog_devices);
+         if(mId == GEO_ID)
+         {
+            mDeviceAdapter = new ArrayAdapter<String>(getContext(), android.R.layout.simple_list_item_1);
+            mDevices.setAdapter(mDeviceAdapter);
+            mDevices.setOnItemClickListener(new DeviceListener());
+         }
+         mDevices.setVisibility(View.GONE);
+         
          Button buttonOK = (Button) findViewById(R.id.dialog_button);
          buttonOK.setOnClickListener(new OKListener());
       }      
@@ -169,6 +223,8 @@ public class PairingDialog extends Dialog
           mInput.setText(String.valueOf(mDeviceNumber & 0xFFFF));
       }
       mInput.selectAll();
+      // Don't show the caches from the last time the dialog was up
+      setScannedDevices(Collections.<DeviceTable.Entry>emptyList());
       mPairingListener.started(this);
    }
    
@@ -178,6 +234,18 @@ public class PairingDialog extends Dialog
       mPairingListener.stopped();
    }
 
+   private class DeviceListener implements AdapterView.OnItemClickListener
+   {
+      public void onItemClick(AdapterView<?> parent, View view, int position, long id)
+      {
+         if(position >= mListedDevices.length)
+            return;
+         mDeviceNumber = mListedDevices[position];
+         mPairingListener.updateID(mId, mDeviceNumber);
+         PairingDialog.this.dismiss();
+      }
+   }
+
    private class OKListener implements android.view.View.OnClickListener
    {  
       private void resetInput()
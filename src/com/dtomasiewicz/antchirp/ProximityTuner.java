@@ -0,0 +1,238 @@
+package com.dtomasiewicz.antchirp;
+
+/**
+ * Picks the proximity bin to search with from how searches with each bin
+ * went where we are.
+ *
+ * A narrow bin only finds caches close by, so it can take many searches to
+ * find anything. A wide bin finds one quickly, but it may be a distant
+ * cache that drops out before its record is read: a false lock. Every bin
+ * is scored by the search time it costs per good lock (one that got a
+ * complete record), with each false lock adding FALSE_LOCK_COST, and the
+ * cheapest bin is used. The bins either side of the current one are tried
+ * now and then until they have a score, so the choice can move. Counts
+ * decay with every search, so the choice follows the user from site to
+ * site.
+ *
+ * Not thread safe: call it from the thread that handles channel events.
+ */
+public class ProximityTuner
+{
+    /** Widest proximity bin, as in SearchScheduler. */
+    private static final int MAX_BIN = 10;
+
+    /** Search time a false lock is counted as wasting (ms). */
+    private static final long FALSE_LOCK_COST = 30 * 1000;
+
+    /** Weight left on past searches with each new one. */
+    private static final double DECAY = 0.95;
+
+    /** Searches a bin needs before its score counts. */
+    private static final double MIN_SEARCHES = 2;
+
+    /** Every n-th search tries an unscored neighbour of the current bin. */
+    private static final int EXPLORE_INTERVAL = 5;
+
+    /** Per bin, decayed: searches, good and false locks, search time (ms), RSSI sum and count. */
+    private final double[] mSearches = new double[MAX_BIN + 1];
+    private final double[] mGoodLocks = new double[MAX_BIN + 1];
+    private final double[] mFalseLocks = new double[MAX_BIN + 1];
+    private final double[] mSearchTime = new double[MAX_BIN + 1];
+    private final double[] mRssiSum = new double[MAX_BIN + 1];
+    private final double[] mRssiCount = new double[MAX_BIN + 1];
+
+    /** The bin to search with next, 0 with proximity search off. */
+    private byte mBin;
+
+    private int mSearchCount = 0;
+
+    /** Bin of the search under way or lock held, 0 if none. */
+    private byte mCurrent = 0;
+    private long mSearchStart = 0;
+    private boolean mLocked = false;
+    private boolean mComplete = false;
+
+    /**
+     * @param base bin to start from, 0 to leave proximity search off
+     */
+    public ProximityTuner(byte base)
+    {
+        setBase(base);
+    }
+
+    /**
+     * Starts over from a bin set by hand. Observations are kept.
+     *
+     * @param base bin to start from, 0 to leave proximity search off
+     */
+    public void setBase(byte base)
+    {
+        mBin = (byte) Math.max(0, Math.min(MAX_BIN, base));
+    }
+
+    /**
+     * @return the bin to search with next
+     */
+    public byte getBin()
+    {
+        if(mBin == 0)
+            return 0;
+        if(mSearchCount % EXPLORE_INTERVAL == EXPLORE_INTERVAL - 1)
+        {
+            if(mBin > 1 && !isScored(mBin - 1))
+                return (byte) (mBin - 1);
+            if(mBin < MAX_BIN && !isScored(mBin + 1))
+                return (byte) (mBin + 1);
+        }
+        return mBin;
+    }
+
+    /**
+     * @param bin the bin actually searched with, which may be wider than
+     *        getBin() after failed searches
+     */
+    public void searchStarted(byte bin, long now)
+    {
+        lockEnded();
+        if(bin <= 0 || bin > MAX_BIN)
+            return;
+        for(int i = 1; i <= MAX_BIN; i++)
+        {
+            mSearches[i] *= DECAY;
+            mGoodLocks[i] *= DECAY;
+            mFalseLocks[i] *= DECAY;
+            mSearchTime[i] *= DECAY;
+            mRssiSum[i] *= DECAY;
+            mRssiCount[i] *= DECAY;
+        }
+        mSearches[bin]++;
+        mSearchCount++;
+        mCurrent = bin;
+        mSearchStart = now;
+    }
+
+    /**
+     * @param rssi signal strength of the cache found, DeviceTable.RSSI_UNKNOWN if not known
+     */
+    public void deviceFound(long now, byte rssi)
+    {
+        if(mCurrent == 0 || mLocked)
+            return;
+        mSearchTime[mCurrent] += now - mSearchStart;
+        if(rssi != DeviceTable.RSSI_UNKNOWN)
+        {
+            mRssiSum[mCurrent] += rssi;
+            mRssiCount[mCurrent]++;
+        }
+        mLocked = true;
+        mComplete = false;
+    }
+
+    /**
+     * A search timed out, or the channel went back to searching after
+     * losing its lock and timed out.
+     */
+    public void searchTimedOut(long now)
+    {
+        if(mCurrent == 0)
+            return;
+        if(!mLocked)
+            mSearchTime[mCurrent] += now - mSearchStart;
+        finish();
+    }
+
+    public void recordComplete()
+    {
+        if(mLocked && !mComplete)
+        {
+            mComplete = true;
+            mGoodLocks[mCurrent]++;
+            choose();
+        }
+    }
+
+    /**
+     * The lock ended, e.g. the channel was closed; without a complete
+     * record it was a false lock.
+     */
+    public void lockEnded()
+    {
+        if(mCurrent != 0)
+            finish();
+    }
+
+    /**
+     * @return good locks per search with the bin, -1 if it hasn't been tried
+     */
+    public double getHitRate(byte bin)
+    {
+        if(bin <= 0 || bin > MAX_BIN || mSearches[bin] == 0)
+            return -1;
+        return mGoodLocks[bin] / mSearches[bin];
+    }
+
+    /**
+     * @return mean RSSI of caches found with the bin, RSSI_UNKNOWN if none were measured (dBm)
+     */
+    public byte getMeanRssi(byte bin)
+    {
+        if(bin <= 0 || bin > MAX_BIN || mRssiCount[bin] < 0.5)
+            return DeviceTable.RSSI_UNKNOWN;
+        return (byte) Math.round(mRssiSum[bin] / mRssiCount[bin]);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder s = new StringBuilder("bin ").append(mBin);
+        for(byte bin = 1; bin <= MAX_BIN; bin++)
+        {
+            if(mSearches[bin] < 0.5)
+                continue;
+            s.append(", ").append(bin).append(": ")
+                    .append(Math.round(getHitRate(bin) * 100)).append("% hit, ")
+                    .append(Math.round(mFalseLocks[bin] * 100 / mSearches[bin])).append("% false");
+            if(getMeanRssi(bin) != DeviceTable.RSSI_UNKNOWN)
+                s.append(", ").append(getMeanRssi(bin)).append("dBm");
+        }
+        return s.toString();
+    }
+
+    private void finish()
+    {
+        if(mLocked && !mComplete)
+            mFalseLocks[mCurrent]++;
+        mCurrent = 0;
+        mLocked = false;
+        mComplete = false;
+        choose();
+    }
+
+    private boolean isScored(int bin)
+    {
+        return mSearches[bin] >= MIN_SEARCHES;
+    }
+
+    /**
+     * @return search time per good lock, false locks included (ms)
+     */
+    private double cost(int bin)
+    {
+        double wasted = mSearchTime[bin] + mFalseLocks[bin] * FALSE_LOCK_COST;
+        // A bin without good locks costs at least all its time over again
+        return wasted / Math.max(mGoodLocks[bin], 0.5);
+    }
+
+    private void choose()
+    {
+        if(mBin == 0)
+            return;
+        int best = mBin;
+        for(int bin = 1; bin <= MAX_BIN; bin++)
+        {
+            if(isScored(bin) && (!isScored(best) || cost(bin) < cost(best)))
+                best = bin;
+        }
+        mBin = (byte) best;
+    }
+}
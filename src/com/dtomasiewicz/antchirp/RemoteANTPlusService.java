@@ -0,0 +1,29 @@
+package com.dtomasiewicz.antchirp;
+
+import android.content.Intent;
+import android.os.IBinder;
+import android.os.Messenger;
+import android.util.Log;
+
+/**
+ * ANTPlusService for the :ant process. The UI can't share the manager
+ * object across processes, so it gets a Messenger to an AntPlusServer
+ * instead of the LocalBinder.
+ */
+public class RemoteANTPlusService extends ANTPlusService
+{
+    private static final String TAG = "ANTPlusDemo - RemoteService.";
+    
+    private Messenger mMessenger;
+
+    @Override
+    public IBinder onBind(Intent intent)
+    {
+        if(ACTION_GEOCACHE_SERVICE.equals(intent.getAction()))
+            return getGeocacheBinder();
+        Log.i(TAG, "First Client bound.");
+        if(mMessenger == null)
+            mMessenger = new Messenger(new AntPlusServer(getManager()));
+        return mMessenger.getBinder();
+    }
+}
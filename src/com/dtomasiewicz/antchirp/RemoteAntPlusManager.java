@@ -0,0 +1,271 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.List;
+
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.dtomasiewicz.antchirp.AntPlusManager.ChannelStates;
+
+/**
+ * UI side of an AntPlusManager running in the :ant process.
+ *
+ * Getters answer from the last snapshot the AntPlusServer sent, commands
+ * are passed on without waiting. Setters update the snapshot right away
+ * too, so a value read back after setting it is the one that was set.
+ */
+public class RemoteAntPlusManager implements AntPlusController
+{
+    private static final String TAG = "ANTPlusDemo - Remote";
+
+    private final Messenger mService;
+
+    private final Messenger mReplyTo = new Messenger(new Handler()
+    {
+        @Override
+        public void handleMessage(Message msg)
+        {
+            if(msg.what == AntPlusServer.MSG_SNAPSHOT)
+                onSnapshot(msg);
+            else
+                super.handleMessage(msg);
+        }
+    });
+
+    private ManagerSnapshot mSnapshot = new ManagerSnapshot();
+
+    private AntPlusManager.Callbacks mCallbacks;
+
+    public RemoteAntPlusManager(IBinder service)
+    {
+        mService = new Messenger(service);
+    }
+
+    private void onSnapshot(Message msg)
+    {
+        mSnapshot = ManagerSnapshot.fromBundle(msg.getData());
+        if(mCallbacks == null)
+            return;
+        if((msg.arg1 & AntPlusServer.FLAG_ERROR) != 0)
+            mCallbacks.errorCallback();
+        for(byte channel = 0; channel < AntPlusServer.DATA_CHANNEL_SHIFT; channel++)
+        {
+            if((msg.arg2 & (1 << channel)) != 0)
+                mCallbacks.notifyChannelStateChanged(channel);
+            if((msg.arg2 & (1 << (channel + AntPlusServer.DATA_CHANNEL_SHIFT))) != 0)
+                mCallbacks.notifyChannelDataChanged(channel);
+        }
+        if((msg.arg1 & AntPlusServer.FLAG_ANT_STATE) != 0)
+            mCallbacks.notifyAntStateChanged();
+    }
+
+    private void send(int what, int arg1, int arg2)
+    {
+        Message msg = Message.obtain(null, what, arg1, arg2);
+        msg.replyTo = mReplyTo;
+        try
+        {
+            mService.send(msg);
+        }
+        catch(RemoteException e)
+        {
+            // The :ant process died, onServiceDisconnected follows
+            Log.w(TAG, "Service went away");
+        }
+    }
+
+    private void send(int what)
+    {
+        send(what, 0, 0);
+    }
+
+    public void setCallbacks(AntPlusManager.Callbacks callbacks)
+    {
+        mCallbacks = callbacks;
+        send(callbacks != null ? AntPlusServer.MSG_REGISTER : AntPlusServer.MSG_UNREGISTER);
+    }
+
+    public boolean isServiceConnected()
+    {
+        return mSnapshot.serviceConnected;
+    }
+
+    public boolean isEnabled()
+    {
+        return mSnapshot.enabled;
+    }
+
+    /**
+     * @return whether ANT was usable as of the last snapshot; a new one is requested
+     */
+    public boolean checkAntState()
+    {
+        send(AntPlusServer.MSG_CHECK_STATE);
+        return mSnapshot.antUsable;
+    }
+
+    public String getAntStateText()
+    {
+        return mSnapshot.antStateText;
+    }
+
+    public void doEnable()
+    {
+        send(AntPlusServer.MSG_ENABLE);
+    }
+
+    public void doDisable()
+    {
+        send(AntPlusServer.MSG_DISABLE);
+    }
+
+    public void requestReset()
+    {
+        send(AntPlusServer.MSG_RESET);
+    }
+
+    public void tryClaimAnt()
+    {
+        send(AntPlusServer.MSG_CLAIM);
+    }
+
+    public void setAntConfiguration()
+    {
+        send(AntPlusServer.MSG_SET_ANT_CONFIGURATION);
+    }
+
+    public void openChannel(byte channel, boolean deferToNextReset)
+    {
+        send(AntPlusServer.MSG_OPEN_CHANNEL, channel, deferToNextReset ? 1 : 0);
+    }
+
+    public void closeChannel(byte channel)
+    {
+        send(AntPlusServer.MSG_CLOSE_CHANNEL, channel, 0);
+    }
+
+    public boolean isChannelOpen(byte channel)
+    {
+        switch(channel)
+        {
+            case AntPlusManager.GEO_CHANNEL:
+                return mSnapshot.geoState != ChannelStates.CLOSED && mSnapshot.geoState != ChannelStates.OFFLINE;
+            case AntPlusManager.SCAN_CHANNEL:
+                return mSnapshot.scanning;
+            default:
+                return false;
+        }
+    }
+
+    public void clearChannelStates()
+    {
+        send(AntPlusServer.MSG_CLEAR_CHANNEL_STATES);
+    }
+
+    public void startScan()
+    {
+        send(AntPlusServer.MSG_START_SCAN);
+    }
+
+    public void stopScan()
+    {
+        send(AntPlusServer.MSG_STOP_SCAN);
+    }
+
+    public boolean isScanning()
+    {
+        return mSnapshot.scanning;
+    }
+
+    /**
+     * @return the devices as of the last snapshot; a new one is requested
+     */
+    public List<DeviceTable.Entry> getScannedDevices()
+    {
+        send(AntPlusServer.MSG_CHECK_STATE);
+        return mSnapshot.scannedDevices;
+    }
+
+    public short getDeviceNumberGEO()
+    {
+        return mSnapshot.deviceNumberGEO;
+    }
+
+    public void setDeviceNumberGEO(short deviceNumberGEO)
+    {
+        mSnapshot.deviceNumberGEO = deviceNumberGEO;
+        send(AntPlusServer.MSG_SET_DEVICE_NUMBER, deviceNumberGEO, 0);
+    }
+
+    public byte getProximityThreshold()
+    {
+        return mSnapshot.proximityThreshold;
+    }
+
+    public void setProximityThreshold(byte proximityThreshold)
+    {
+        mSnapshot.proximityThreshold = proximityThreshold;
+        send(AntPlusServer.MSG_SET_PROXIMITY, proximityThreshold, 0);
+    }
+
+    public short getBufferThreshold()
+    {
+        return mSnapshot.bufferThreshold;
+    }
+
+    public void setBufferThreshold(short bufferThreshold)
+    {
+        mSnapshot.bufferThreshold = bufferThreshold;
+        send(AntPlusServer.MSG_SET_BUFFER, bufferThreshold, 0);
+    }
+
+    public ChannelStates getGeoState()
+    {
+        return mSnapshot.geoState;
+    }
+
+    public String getGeoID()
+    {
+        return mSnapshot.geoID;
+    }
+
+    public long getGeoPIN()
+    {
+        return mSnapshot.geoPIN;
+    }
+
+    public int getGeoLatitude()
+    {
+        return mSnapshot.geoLatitude;
+    }
+
+    public int getGeoLongitude()
+    {
+        return mSnapshot.geoLongitude;
+    }
+
+    public String getGeoHint()
+    {
+        return mSnapshot.geoHint;
+    }
+
+    public int getGeoLoggedVisits()
+    {
+        return mSnapshot.geoLoggedVisits;
+    }
+
+    public void logGeoVisit()
+    {
+        mSnapshot.geoPendingVisits++;
+        send(AntPlusServer.MSG_LOG_VISIT);
+    }
+
+    public int getGeoPendingVisits()
+    {
+        return mSnapshot.geoPendingVisits;
+    }
+}
@@ -0,0 +1,129 @@
+package com.dtomasiewicz.antchirp;
+
+/**
+ * Picks search parameters for the next search from how recent ones went.
+ *
+ * A device that is around is usually found within a few seconds, so a
+ * short high priority window sized from recent acquire times finds it
+ * fast. Once searches start timing out nothing is near: high priority
+ * search is dropped, the low priority timeout shortened, the proximity
+ * bin widened one step per failure, and retries spaced further apart, so
+ * the radio spends less and less time searching an empty area.
+ */
+public class SearchScheduler
+{
+    /** Search timeouts are in units of 2.5s. */
+    private static final long TIMEOUT_UNIT = 2500;
+
+    /** High priority window with no history, and its bounds (2.5s units). */
+    private static final byte DEFAULT_SEARCH_TIMEOUT = 2;
+    private static final byte MIN_SEARCH_TIMEOUT = 1;
+    private static final byte MAX_SEARCH_TIMEOUT = 4;
+
+    /** Low priority timeout of the first search, and the shortest one after failures (2.5s units). */
+    private static final byte BASE_LP_SEARCH_TIMEOUT = 12;
+    private static final byte MIN_LP_SEARCH_TIMEOUT = 4;
+
+    /** Widest proximity bin. */
+    private static final byte MAX_PROXIMITY_BIN = 10;
+
+    /** Delay before the first retry, doubled on each further failure (ms). */
+    private static final long MIN_RETRY_DELAY = 5000;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000;
+
+    /** Number of acquire times averaged. */
+    private static final int HISTORY = 8;
+
+    private final long[] mAcquireTimes = new long[HISTORY];
+
+    private int mAcquireCount = 0;
+
+    /** Searches timed out since a device was last found. */
+    private int mFailures = 0;
+
+    /** When the current search started, 0 if none is running (ms). */
+    private long mSearchStart = 0;
+
+    /**
+     * @return high priority search timeout for the next search (2.5s units)
+     */
+    public synchronized byte getSearchTimeout()
+    {
+        if(mFailures > 0)
+            return 0;
+        if(mAcquireCount == 0)
+            return DEFAULT_SEARCH_TIMEOUT;
+        // Half again the mean, so most acquisitions fall inside the window
+        long window = (getMeanAcquireTime() * 3 / 2 + TIMEOUT_UNIT - 1) / TIMEOUT_UNIT;
+        return (byte) Math.max(MIN_SEARCH_TIMEOUT, Math.min(MAX_SEARCH_TIMEOUT, window));
+    }
+
+    /**
+     * @return low priority search timeout for the next search (2.5s units)
+     */
+    public synchronized byte getLowPrioritySearchTimeout()
+    {
+        return (byte) Math.max(MIN_LP_SEARCH_TIMEOUT, BASE_LP_SEARCH_TIMEOUT >> Math.min(mFailures, 7));
+    }
+
+    /**
+     * @param base the configured proximity bin, 0 if proximity search is off
+     * @return proximity bin for the next search
+     */
+    public synchronized byte getProximityBin(byte base)
+    {
+        if(base == 0)
+            return 0;
+        return (byte) Math.min(MAX_PROXIMITY_BIN, base + mFailures);
+    }
+
+    /**
+     * @return how long to wait after the last timeout before searching again (ms)
+     */
+    public synchronized long getRetryDelay()
+    {
+        if(mFailures == 0)
+            return 0;
+        return Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(mFailures - 1, 16));
+    }
+
+    /**
+     * @return mean time from opening the channel to finding a device, 0 with no history (ms)
+     */
+    public synchronized long getMeanAcquireTime()
+    {
+        int count = Math.min(mAcquireCount, HISTORY);
+        if(count == 0)
+            return 0;
+        long total = 0;
+        for(int i = 0; i < count; i++)
+            total += mAcquireTimes[i];
+        return total / count;
+    }
+
+    public synchronized int getFailures()
+    {
+        return mFailures;
+    }
+
+    public synchronized void searchStarted(long now)
+    {
+        mSearchStart = now;
+    }
+
+    public synchronized void deviceFound(long now)
+    {
+        if(mSearchStart == 0)
+            return;
+        mAcquireTimes[mAcquireCount % HISTORY] = now - mSearchStart;
+        mAcquireCount++;
+        mFailures = 0;
+        mSearchStart = 0;
+    }
+
+    public synchronized void searchTimedOut()
+    {
+        mFailures++;
+        mSearchStart = 0;
+    }
+}
@@ -0,0 +1,106 @@
+package com.dtomasiewicz.antchirp;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Keeps ANTPlusService started while any channel is in use.
+ *
+ * Channels are counted as a set, so marking one active or inactive twice
+ * is harmless. The service is started when the first channel becomes
+ * active and stopped only once none has been active for STOP_GRACE, so a
+ * channel closed and reopened, e.g. across a reset or a search retry,
+ * doesn't restart the service or repost its notification.
+ */
+public class ServiceLifecycle
+{
+    private static final String TAG = "ANTPlusDemo - Lifecycle";
+
+    /** How long the service outlives the last active channel (ms) */
+    private static final long STOP_GRACE = 10000;
+
+    private final Context mContext;
+
+    private final Handler mHandler;
+
+    /** Bit n set while channel n is active */
+    private int mActiveChannels = 0;
+
+    /** If we have started the service and not stopped it since */
+    private boolean mStarted = false;
+
+    private final Runnable mStop = new Runnable()
+    {
+        public void run()
+        {
+            if(mActiveChannels == 0 && mStarted)
+            {
+                Log.i(TAG, "Stopping service.");
+                mStarted = false;
+                mContext.stopService(new Intent(mContext, mContext.getClass()));
+            }
+        }
+    };
+
+    /**
+     * @param context the service to start and stop
+     */
+    public ServiceLifecycle(Context context, Handler handler)
+    {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    public void setActive(byte channel, boolean active)
+    {
+        if(active)
+        {
+            mActiveChannels |= 1 << channel;
+            mHandler.removeCallbacks(mStop);
+            if(!mStarted)
+            {
+                Log.i(TAG, "Starting service.");
+                mStarted = true;
+                mContext.startService(new Intent(mContext, mContext.getClass()));
+            }
+        }
+        else
+        {
+            mActiveChannels &= ~(1 << channel);
+            scheduleStop();
+        }
+    }
+
+    /**
+     * Marks every channel inactive, e.g. when the radio went away.
+     */
+    public void releaseAll()
+    {
+        mActiveChannels = 0;
+        scheduleStop();
+    }
+
+    public boolean isActive()
+    {
+        return mActiveChannels != 0;
+    }
+
+    /**
+     * Drops a pending stop, for when the service is going away anyway.
+     */
+    public void cancel()
+    {
+        mHandler.removeCallbacks(mStop);
+        mStarted = false;
+    }
+
+    private void scheduleStop()
+    {
+        if(mActiveChannels != 0 || !mStarted)
+            return;
+        mHandler.removeCallbacks(mStop);
+        mHandler.postDelayed(mStop, STOP_GRACE);
+    }
+}
@@ -0,0 +1,215 @@
+package com.dtomasiewicz.antchirp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps state across the process being killed: a snapshot, rewritten now
+ * and then, and a log of the fixed size deltas since.
+ *
+ * Writes happen in order on a background thread, so the caller never
+ * waits for the disk. Writing a snapshot empties the delta log and then
+ * replaces the snapshot file atomically. Killed in between, the old
+ * snapshot is read without the deltas that followed it, rather than old
+ * deltas over the new snapshot. Deltas are appended unbuffered but not
+ * synced: the kernel keeps what a killed process wrote, and a torn last
+ * delta is ignored on read.
+ */
+public class SnapshotStore
+{
+    private final File mSnapshot;
+    private final File mDeltas;
+    private final int mDeltaSize;
+
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
+    /** Used on the worker thread only. */
+    private FileOutputStream mDeltaOut;
+
+    private IOException mError;
+
+    /**
+     * @param deltaSize length of every delta
+     */
+    public SnapshotStore(File snapshot, File deltas, int deltaSize)
+    {
+        mSnapshot = snapshot;
+        mDeltas = deltas;
+        mDeltaSize = deltaSize;
+    }
+
+    /**
+     * Reads on the caller's thread, so call before anything is written.
+     *
+     * @return the last snapshot, null if there is none
+     */
+    public byte[] readSnapshot() throws IOException
+    {
+        if(!mSnapshot.exists())
+            return null;
+        return readAll(mSnapshot);
+    }
+
+    /**
+     * @return the deltas appended since the last snapshot, oldest first
+     */
+    public List<byte[]> readDeltas() throws IOException
+    {
+        List<byte[]> deltas = new ArrayList<byte[]>();
+        if(!mDeltas.exists())
+            return deltas;
+        byte[] all = readAll(mDeltas);
+        for(int offset = 0; offset + mDeltaSize <= all.length; offset += mDeltaSize)
+        {
+            byte[] delta = new byte[mDeltaSize];
+            System.arraycopy(all, offset, delta, 0, mDeltaSize);
+            deltas.add(delta);
+        }
+        return deltas;
+    }
+
+    /**
+     * Queues a snapshot, which covers every delta appended before it.
+     */
+    public void writeSnapshot(final byte[] snapshot)
+    {
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    File tmp = new File(mSnapshot.getPath() + ".tmp");
+                    FileOutputStream out = new FileOutputStream(tmp);
+                    try
+                    {
+                        out.write(snapshot);
+                        out.getFD().sync();
+                    }
+                    finally
+                    {
+                        out.close();
+                    }
+                    // Empty the log first, so that its deltas are never read over the new snapshot
+                    closeDeltas();
+                    mDeltaOut = new FileOutputStream(mDeltas, false);
+                    if(!tmp.renameTo(mSnapshot))
+                        throw new IOException("Could not replace " + mSnapshot);
+                }
+                catch(IOException e)
+                {
+                    setError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a delta, copied from buffer straight away.
+     */
+    public void appendDelta(byte[] buffer, int offset)
+    {
+        final byte[] delta = new byte[mDeltaSize];
+        System.arraycopy(buffer, offset, delta, 0, mDeltaSize);
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    if(mDeltaOut == null)
+                        mDeltaOut = new FileOutputStream(mDeltas, true);
+                    mDeltaOut.write(delta);
+                }
+                catch(IOException e)
+                {
+                    setError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the last write that failed, null if none did
+     */
+    public synchronized IOException getError()
+    {
+        return mError;
+    }
+
+    /**
+     * Finishes the queued writes and stops the background thread.
+     */
+    public void close()
+    {
+        execute(new Runnable()
+        {
+            public void run()
+            {
+                closeDeltas();
+            }
+        });
+        mWorker.shutdown();
+        try
+        {
+            mWorker.awaitTermination(2, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void execute(Runnable write)
+    {
+        if(!mWorker.isShutdown())
+            mWorker.execute(write);
+    }
+
+    private synchronized void setError(IOException e)
+    {
+        mError = e;
+    }
+
+    private void closeDeltas()
+    {
+        if(mDeltaOut == null)
+            return;
+        try
+        {
+            mDeltaOut.close();
+        }
+        catch(IOException e)
+        {
+            // Nothing was buffered
+        }
+        mDeltaOut = null;
+    }
+
+    private static byte[] readAll(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[1024];
+            int n;
+            while((n = in.read(buffer)) > 0)
+                out.write(buffer, 0, n);
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.dtomasiewicz.antchirp;
+
+/**
+ * Times the steps of a cold start, from launch to the first broadcast.
+ *
+ * Steps run in parallel, so each is marked with its time since launch
+ * rather than since the step before. Only the first mark of a step counts.
+ */
+public class StartupTrace
+{
+    private final long mLaunch;
+
+    private final StringBuilder mSteps = new StringBuilder();
+
+    private long mTotal = -1;
+
+    /**
+     * @param launch launch time, SystemClock.elapsedRealtime()
+     */
+    public StartupTrace(long launch)
+    {
+        mLaunch = launch;
+    }
+
+    /**
+     * Marks a step done.
+     *
+     * @return ms since launch
+     */
+    public synchronized long mark(String step, long now)
+    {
+        long elapsed = now - mLaunch;
+        if(mTotal < 0 && mSteps.indexOf(" " + step + "=") < 0)
+            mSteps.append(' ').append(step).append('=').append(elapsed).append("ms");
+        return elapsed;
+    }
+
+    /**
+     * Marks the last step, after which marks are ignored.
+     *
+     * @return ms since launch
+     */
+    public synchronized long finish(String step, long now)
+    {
+        if(mTotal < 0)
+        {
+            mark(step, now);
+            mTotal = now - mLaunch;
+        }
+        return mTotal;
+    }
+
+    public synchronized boolean isFinished()
+    {
+        return mTotal >= 0;
+    }
+
+    /**
+     * @return launch to the last step (ms), -1 if not there yet
+     */
+    public synchronized long getTotal()
+    {
+        return mTotal;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return mSteps.toString().trim();
+    }
+}
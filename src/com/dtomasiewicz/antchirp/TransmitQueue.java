@@ -0,0 +1,128 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Acknowledged data for one channel, sent one transfer at a time.
+ *
+ * ANT holds a single acknowledged transfer per channel; a second one sent
+ * before the first has completed replaces or is refused by it. So every
+ * sender on the channel queues here. The next transfer goes out only on
+ * the completion event of the one before, and each completion is handed
+ * to whoever queued that transfer. A transfer already waiting in the
+ * queue is not queued twice.
+ *
+ * Not thread safe: call it from the thread that handles channel events.
+ */
+public class TransmitQueue
+{
+    /** Puts a transfer on the air. */
+    public interface Transmitter
+    {
+        /** @return false if it couldn't be sent, e.g. the channel is gone */
+        public boolean transmit(byte[] payload);
+    }
+
+    /** Outcome of one queued transfer. */
+    public interface Listener
+    {
+        public void transferCompleted(byte[] payload);
+
+        public void transferFailed(byte[] payload);
+    }
+
+    private static class Transfer
+    {
+        final byte[] payload;
+        final Listener listener;
+
+        Transfer(byte[] payload, Listener listener)
+        {
+            this.payload = payload;
+            this.listener = listener;
+        }
+    }
+
+    private final Transmitter mTransmitter;
+
+    private final LinkedList<Transfer> mQueue = new LinkedList<Transfer>();
+
+    /** The transfer waiting for its completion event, null if none. */
+    private Transfer mInFlight;
+
+    public TransmitQueue(Transmitter transmitter)
+    {
+        mTransmitter = transmitter;
+    }
+
+    /**
+     * Queues a transfer, sending it straight away if the channel is free.
+     *
+     * @param listener told the outcome, or null if nobody needs it
+     */
+    public void send(byte[] payload, Listener listener)
+    {
+        for(Transfer queued : mQueue)
+        {
+            if(queued.listener == listener && Arrays.equals(queued.payload, payload))
+                return;
+        }
+        mQueue.add(new Transfer(payload, listener));
+        next();
+    }
+
+    /** Call on EVENT_TRANSFER_TX_COMPLETED for the channel. */
+    public void onCompleted()
+    {
+        Transfer done = mInFlight;
+        mInFlight = null;
+        if(done != null && done.listener != null)
+            done.listener.transferCompleted(done.payload);
+        next();
+    }
+
+    /** Call on EVENT_TRANSFER_TX_FAILED for the channel. */
+    public void onFailed()
+    {
+        Transfer failed = mInFlight;
+        mInFlight = null;
+        if(failed != null && failed.listener != null)
+            failed.listener.transferFailed(failed.payload);
+        next();
+    }
+
+    /**
+     * Drops everything queued and forgets the transfer in flight, e.g. when
+     * the channel closes. Nobody is told.
+     */
+    public void clear()
+    {
+        mQueue.clear();
+        mInFlight = null;
+    }
+
+    /**
+     * @return whether nothing is queued or waiting for its completion
+     */
+    public boolean isIdle()
+    {
+        return mInFlight == null && mQueue.isEmpty();
+    }
+
+    private void next()
+    {
+        while(mInFlight == null && !mQueue.isEmpty())
+        {
+            Transfer transfer = mQueue.removeFirst();
+            if(mTransmitter.transmit(transfer.payload))
+            {
+                mInFlight = transfer;
+            }
+            else if(transfer.listener != null)
+            {
+                transfer.listener.transferFailed(transfer.payload);
+            }
+        }
+    }
+}
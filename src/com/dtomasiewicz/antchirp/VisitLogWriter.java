@@ -0,0 +1,386 @@
+package com.dtomasiewicz.antchirp;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Writes logged visits back to Geocaches.
+ *
+ * Visits are queued by cache ID and written while a cache with pending
+ * visits is in range. Everything queued for a cache goes out in a single
+ * write that raises the count by that many visits, so a busy event costs
+ * each cache one write per session rather than one connection per visitor.
+ *
+ * Authentication (sending a nonce and waiting for the cache's token) starts
+ * as soon as the cache's ID and PIN are known. The nonce takes its turn in
+ * the channel's transmit queue between the page requests of the download,
+ * so a write usually finds the token already in hand. A write then sends
+ * the new Logged Visits page and, once the cache has acknowledged it,
+ * requests the page back to check it. Each step is started by the outcome
+ * of the one before. A transfer that fails, or a read-back that brings no
+ * page within STEP_TIMEOUT pages, starts the write over with a fresh token,
+ * up to MAX_ATTEMPTS times. Visits queued while a write is under way go out
+ * in the next write of the same session.
+ *
+ * Not thread safe: call it from the thread that decodes pages.
+ */
+public class VisitLogWriter
+{
+    /**
+     * Sends pages to the cache in range.
+     */
+    public interface Sender
+    {
+        /**
+         * Sends a page as acknowledged data, after whatever else the
+         * channel has queued.
+         *
+         * @param listener told the outcome of this transfer
+         */
+        public void send(byte[] payload, TransmitQueue.Listener listener);
+    }
+
+    public interface Listener
+    {
+        /** The cache has counted that many more visits. */
+        public void visitsLogged(String cacheId, int visits, long authToken);
+
+        /** Gave up on writing visits; they stay queued for the next session. */
+        public void visitsFailed(String cacheId, int visits);
+    }
+
+    /** Seconds from the Unix epoch to the ANT epoch, 1989-12-31 00:00 UTC. */
+    public static final long ANT_EPOCH_OFFSET = 631065600L;
+
+    /** Pages received without an answer before a step is retried, 2s at 4Hz. */
+    private static final int STEP_TIMEOUT = 8;
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** Largest count the Logged Visits page holds. */
+    private static final int MAX_VISITS = 0xFFFF;
+
+    private static final int IDLE = 0;
+    private static final int AUTHENTICATING = 1;
+    private static final int WRITING = 2;
+    private static final int VERIFYING = 3;
+
+    // Authentication with the cache in range
+    private static final int AUTH_NONE = 0;
+    private static final int AUTH_REQUESTED = 1;
+    private static final int AUTH_DONE = 2;
+
+    private static class Pending
+    {
+        int visits = 0;
+
+        /** Device number the cache was last seen with. */
+        int deviceNumber;
+
+        /** Latest of the queued visits, seconds since the ANT epoch. */
+        long lastVisit = 0;
+    }
+
+    private final GeocacheDecoder mDecoder;
+    private final Sender mSender;
+    private final Listener mListener;
+
+    private final HashMap<String, Pending> mPending = new HashMap<String, Pending>();
+
+    private final Random mRandom = new Random();
+
+    private int mState = IDLE;
+
+    // The write under way
+    private String mCacheId;
+    private byte mPage;
+    private int mBatch;
+    private int mExpectedVisits;
+    private long mExpectedLastVisit;
+    private int mAttempts;
+
+    /** The Logged Visits page of the write under way, as sent. */
+    private byte[] mWritePayload;
+
+    /** Pages received since the read-back was acknowledged, -1 until it is. */
+    private int mWaited;
+
+    /** A cache given up on this session, so that it isn't retried on every page. */
+    private String mFailedCacheId;
+
+    private int mAuthState = AUTH_NONE;
+
+    /** Pages received since the cache acknowledged the nonce, -1 until it has. */
+    private int mAuthWaited;
+
+    /** The nonce request under way, as sent. */
+    private byte[] mNoncePayload;
+
+    /** Nonces sent without an answer. */
+    private int mAuthAttempts;
+
+    public VisitLogWriter(GeocacheDecoder decoder, Sender sender, Listener listener)
+    {
+        mDecoder = decoder;
+        mSender = sender;
+        mListener = listener;
+    }
+
+    /**
+     * Queues a visit to a cache.
+     *
+     * @param deviceNumber the cache's ANT device number, so that it can be
+     *        recognised before its ID page is read
+     * @param time when the visit happened (ms since the Unix epoch)
+     */
+    public void logVisit(String cacheId, int deviceNumber, long time)
+    {
+        Pending pending = mPending.get(cacheId);
+        if(pending == null)
+        {
+            pending = new Pending();
+            mPending.put(cacheId, pending);
+        }
+        pending.visits++;
+        pending.deviceNumber = deviceNumber;
+        pending.lastVisit = Math.max(pending.lastVisit, time / 1000 - ANT_EPOCH_OFFSET);
+        if(cacheId.equals(mFailedCacheId))
+            mFailedCacheId = null;
+    }
+
+    /**
+     * @return visits queued for a cache and not yet confirmed written
+     */
+    public int getPending(String cacheId)
+    {
+        Pending pending = mPending.get(cacheId);
+        return pending != null ? pending.visits : 0;
+    }
+
+    /**
+     * @return whether any visits are queued for the cache with this device number
+     */
+    public boolean hasPendingVisits(int deviceNumber)
+    {
+        for(Pending pending : mPending.values())
+        {
+            if(pending.deviceNumber == deviceNumber)
+                return true;
+        }
+        return false;
+    }
+
+    public boolean isBusy()
+    {
+        return mState != IDLE;
+    }
+
+    /**
+     * @return whether the cache in range has answered a nonce this session
+     */
+    public boolean isAuthenticated()
+    {
+        return mAuthState == AUTH_DONE;
+    }
+
+    /**
+     * Forgets the write under way, e.g. when the channel closes. Queued
+     * visits are kept.
+     */
+    public void reset()
+    {
+        mState = IDLE;
+        mCacheId = null;
+        mFailedCacheId = null;
+        mAuthState = AUTH_NONE;
+        mAuthAttempts = 0;
+    }
+
+    /**
+     * Call after every page decoded from the cache in range.
+     */
+    public void onPage(byte pageNum)
+    {
+        if(mAuthState == AUTH_REQUESTED)
+        {
+            if(pageNum == GeocacheDecoder.PAGE_AUTH && mDecoder.hasPage(GeocacheDecoder.PAGE_AUTH))
+                mAuthState = AUTH_DONE;
+            else if(mAuthWaited >= 0 && ++mAuthWaited > STEP_TIMEOUT)
+                mAuthState = AUTH_NONE;
+        }
+        // Don't wait for a visit to be logged; the nonce queues up behind the page requests
+        if(mAuthState == AUTH_NONE && mAuthAttempts < MAX_ATTEMPTS
+                && mDecoder.hasPage(GeocacheDecoder.PAGE_ID) && mDecoder.hasPage(GeocacheDecoder.PAGE_PIN))
+            authenticate();
+
+        switch(mState)
+        {
+        case IDLE:
+            start();
+            return;
+        case AUTHENTICATING:
+            if(mAuthState == AUTH_DONE)
+                write();
+            else if(mAuthState == AUTH_NONE)
+                fail(); // Out of nonces
+            return;
+        case WRITING:
+            return; // Until the transfer's outcome
+        case VERIFYING:
+            if(pageNum == mPage && mDecoder.hasPage(mPage))
+            {
+                verify();
+                return;
+            }
+            break;
+        }
+        // Only count once the read-back request is out
+        if(mWaited >= 0 && ++mWaited > STEP_TIMEOUT)
+            retry();
+    }
+
+    private final TransmitQueue.Listener mWriteOutcome = new TransmitQueue.Listener()
+    {
+        public void transferCompleted(byte[] payload)
+        {
+            if(mState != WRITING || payload != mWritePayload)
+                return; // From a write given up on
+            // The cache has the page; read it back
+            mState = VERIFYING;
+            mWaited = -1;
+            mDecoder.forgetPage(mPage);
+            mSender.send(GeoMesg.requestDataPage(mPage), mReadBackOutcome);
+        }
+
+        public void transferFailed(byte[] payload)
+        {
+            if(mState == WRITING && payload == mWritePayload)
+                retry();
+        }
+    };
+
+    private final TransmitQueue.Listener mReadBackOutcome = new TransmitQueue.Listener()
+    {
+        public void transferCompleted(byte[] payload)
+        {
+            // Give the cache STEP_TIMEOUT pages to answer from here
+            if(mState == VERIFYING && mWaited < 0)
+                mWaited = 0;
+        }
+
+        public void transferFailed(byte[] payload)
+        {
+            if(mState == VERIFYING)
+                retry();
+        }
+    };
+
+    private final TransmitQueue.Listener mNonceOutcome = new TransmitQueue.Listener()
+    {
+        public void transferCompleted(byte[] payload)
+        {
+            // The cache has the nonce; its answer is due from now
+            if(mAuthState == AUTH_REQUESTED && payload == mNoncePayload)
+                mAuthWaited = 0;
+        }
+
+        public void transferFailed(byte[] payload)
+        {
+            if(mAuthState == AUTH_REQUESTED && payload == mNoncePayload)
+                mAuthState = AUTH_NONE;
+        }
+    };
+
+    private void start()
+    {
+        if(!mDecoder.hasPage(GeocacheDecoder.PAGE_ID))
+            return;
+        String cacheId = mDecoder.getID();
+        Pending pending = mPending.get(cacheId);
+        if(pending == null || cacheId.equals(mFailedCacheId))
+            return;
+        // Need the current count to add to
+        byte page = mDecoder.getLoggedVisitsPage();
+        if(page < 0 || !mDecoder.hasPage(page))
+            return;
+        mCacheId = cacheId;
+        mPage = page;
+        mBatch = pending.visits;
+        // An absolute count, so writing it again after a lost answer doesn't count twice
+        mExpectedVisits = Math.min(mDecoder.getLoggedVisits() + mBatch, MAX_VISITS);
+        mExpectedLastVisit = pending.lastVisit;
+        mAttempts = 1;
+        if(mAuthState == AUTH_DONE)
+        {
+            write();
+        }
+        else
+        {
+            mState = AUTHENTICATING;
+            if(mAuthState == AUTH_NONE)
+            {
+                mAuthAttempts = 0;
+                authenticate();
+            }
+        }
+    }
+
+    private void authenticate()
+    {
+        mAuthState = AUTH_REQUESTED;
+        mAuthWaited = -1;
+        mAuthAttempts++;
+        mDecoder.forgetPage(GeocacheDecoder.PAGE_AUTH);
+        // Through the channel's queue like the page requests, never on top of one
+        mNoncePayload = GeoMesg.authenticationRequest(mRandom.nextInt());
+        mSender.send(mNoncePayload, mNonceOutcome);
+    }
+
+    private void write()
+    {
+        mState = WRITING;
+        mWritePayload = GeoMesg.loggedVisitsPage(mPage, mExpectedLastVisit, mExpectedVisits);
+        mSender.send(mWritePayload, mWriteOutcome);
+    }
+
+    private void verify()
+    {
+        if(mDecoder.getLoggedVisits() != mExpectedVisits || mDecoder.getLastVisit() != mExpectedLastVisit)
+        {
+            retry();
+            return;
+        }
+        Pending pending = mPending.get(mCacheId);
+        pending.visits -= mBatch;
+        if(pending.visits <= 0)
+            mPending.remove(mCacheId);
+        mState = IDLE;
+        mListener.visitsLogged(mCacheId, mBatch, mDecoder.getAuthToken());
+        // Anything queued meanwhile goes out in this session too
+        start();
+    }
+
+    /**
+     * Starts the write over. The cache may have refused the token, so a
+     * fresh one is asked for.
+     */
+    private void retry()
+    {
+        if(mAttempts >= MAX_ATTEMPTS)
+        {
+            fail();
+            return;
+        }
+        mAttempts++;
+        mState = AUTHENTICATING;
+        mAuthAttempts = 0;
+        authenticate();
+    }
+
+    private void fail()
+    {
+        mState = IDLE;
+        mFailedCacheId = mCacheId;
+        mListener.visitsFailed(mCacheId, mBatch);
+    }
+}
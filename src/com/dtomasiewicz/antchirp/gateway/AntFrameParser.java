@@ -0,0 +1,143 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming parser for ANT serial frames (sync 0xA4, length, ID, data,
+ * XOR checksum).
+ *
+ * Works on any byte stream fed through a ByteBuffer: a serial port, a file
+ * or a capture. Frames are returned as a view into the source buffer rather
+ * than copied out, and the same view object is reused for every frame, so
+ * parsing does not allocate. Partial frames are left in the buffer for the
+ * next read; bytes that don't start a valid frame are skipped one at a time
+ * until the parser is back in sync.
+ */
+public class AntFrameParser
+{
+    /**
+     * A view of one frame in the source buffer. Only valid until the next
+     * call to {@link AntFrameParser#next(ByteBuffer)} or until the source
+     * buffer is modified.
+     */
+    public static final class Frame
+    {
+        private ByteBuffer mSource;
+        private int mOffset;
+        private int mLength;
+
+        /** The buffer the frame lives in. */
+        public ByteBuffer source()
+        {
+            return mSource;
+        }
+
+        /**
+         * Absolute index of the length byte in the source buffer. Message
+         * offsets from AntMesg are relative to this index.
+         */
+        public int offset()
+        {
+            return mOffset;
+        }
+
+        /** Message length from the length byte up to, not including, the checksum. */
+        public int length()
+        {
+            return mLength;
+        }
+
+        public byte id()
+        {
+            return mSource.get(mOffset + 1);
+        }
+
+        /** Byte at the given offset from the length byte. */
+        public byte get(int index)
+        {
+            return mSource.get(mOffset + index);
+        }
+    }
+
+    private final Frame mFrame = new Frame();
+
+    private long mFrameCount;
+    private long mChecksumErrors;
+    private long mSkippedBytes;
+
+    /**
+     * Finds the next complete, valid frame between the buffer's position and
+     * limit. On return the position is past the frame that was found, or at
+     * the start of the incomplete frame left over when null is returned, so
+     * the caller can compact and read more.
+     *
+     * @return a view of the frame, or null if no complete frame remains
+     */
+    public Frame next(ByteBuffer buffer)
+    {
+        int pos = buffer.position();
+        int limit = buffer.limit();
+
+        while(limit - pos >= SerialMesg.MESG_FRAME_OVERHEAD)
+        {
+            if(buffer.get(pos) != SerialMesg.MESG_TX_SYNC)
+            {
+                pos++;
+                mSkippedBytes++;
+                continue;
+            }
+            int length = buffer.get(pos+1) & 0xFF;
+            if(length > SerialMesg.MESG_MAX_DATA_SIZE)
+            {
+                pos++;
+                mSkippedBytes++;
+                continue;
+            }
+            int frameSize = length + SerialMesg.MESG_FRAME_OVERHEAD;
+            if(limit - pos < frameSize)
+                break;
+
+            // XOR over the whole frame, checksum included, is zero when valid
+            byte checksum = 0;
+            for(int i = pos; i < pos + frameSize; i++)
+                checksum ^= buffer.get(i);
+
+            if(checksum != 0)
+            {
+                // Treat the sync byte as noise and resync after it
+                pos++;
+                mChecksumErrors++;
+                mSkippedBytes++;
+                continue;
+            }
+
+            buffer.position(pos + frameSize);
+            mFrameCount++;
+            mFrame.mSource = buffer;
+            mFrame.mOffset = pos + 1;
+            mFrame.mLength = frameSize - 2;
+            return mFrame;
+        }
+
+        buffer.position(pos);
+        return null;
+    }
+
+    /** Number of valid frames returned so far. */
+    public long getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+    /** Number of frames dropped because their checksum didn't match. */
+    public long getChecksumErrors()
+    {
+        return mChecksumErrors;
+    }
+
+    /** Number of bytes skipped while looking for a frame. */
+    public long getSkippedBytes()
+    {
+        return mSkippedBytes;
+    }
+}
@@ -0,0 +1,266 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import com.dsi.ant.AntDefine;
+import com.dsi.ant.AntMesg;
+
+/**
+ * One ANT USB stick owned by the gateway.
+ *
+ * Each stick has its own I/O thread which resets the stick, loads the
+ * network key and then runs the transport's receive loop, so sticks never
+ * wait on each other. The I/O thread only routes messages to the mailbox of
+ * the session on their channel; sessions run on threads of their own.
+ * A stick whose network key is rejected or not answered, or whose
+ * transport fails, is closed and takes no more sessions; those waiting
+ * for it end and are opened again on the other sticks.
+ */
+class GatewayStick implements Runnable, SerialAntTransport.MessageListener
+{
+    /** Network: 1 (ANT+) */
+    static final byte ANT_PLUS_NETWORK = 1;
+
+    /** Time the stick needs after a reset before accepting commands (ms). */
+    private static final long RESET_DELAY = 500;
+
+    /** How long sessions wait for the network key to be accepted (ms). */
+    private static final long NETWORK_TIMEOUT = 5000;
+
+    /**
+     * Extra load a searching channel counts for. A search keeps the receiver
+     * busy far more than a tracking channel, which only wakes once a period.
+     */
+    private static final int SEARCH_WEIGHT = 2;
+
+    private final String mName;
+
+    private final SerialAntTransport mTransport;
+
+    private final byte[] mNetworkKey;
+
+    /** Sessions by channel number, null for a free channel. */
+    private final GeocacheSession[] mChannels;
+
+    private final GeocacheGateway mGateway;
+
+    private final Executor mSessionExecutor;
+
+    private final Thread mThread;
+
+    /** Released once the network key has been accepted, channels can be set up. */
+    private final CountDownLatch mNetworkReady = new CountDownLatch(1);
+
+    /** The stick can't be used; set before mNetworkReady is released. */
+    private volatile boolean mFailed = false;
+
+    GatewayStick(GeocacheGateway gateway, String name, SerialAntTransport transport, byte[] networkKey,
+            int channelCount, Executor sessionExecutor)
+    {
+        mGateway = gateway;
+        mName = name;
+        mTransport = transport;
+        mNetworkKey = networkKey;
+        mChannels = new GeocacheSession[channelCount];
+        mSessionExecutor = sessionExecutor;
+        mThread = new Thread(this, "ant-" + name);
+        mTransport.setListener(this);
+    }
+
+    SerialAntTransport getTransport()
+    {
+        return mTransport;
+    }
+
+    void start()
+    {
+        mThread.start();
+    }
+
+    void join() throws InterruptedException
+    {
+        mThread.join();
+    }
+
+    public void run()
+    {
+        try
+        {
+            mTransport.resetSystem();
+            Thread.sleep(RESET_DELAY);
+            mTransport.setNetworkKey(ANT_PLUS_NETWORK, mNetworkKey);
+        }
+        catch(IOException e)
+        {
+            onTransportError(e);
+            return;
+        }
+        catch(InterruptedException e)
+        {
+            return;
+        }
+        mTransport.run();
+    }
+
+    /**
+     * Load used to place new sessions: occupied channels plus extra weight
+     * for those still searching.
+     */
+    synchronized int getLoad()
+    {
+        int load = 0;
+        for(GeocacheSession session : mChannels)
+        {
+            if(session != null)
+                load += session.mSearching ? 1 + SEARCH_WEIGHT : 1;
+        }
+        return load;
+    }
+
+    synchronized boolean hasFreeChannel()
+    {
+        return !mFailed && freeChannel() >= 0;
+    }
+
+    private int freeChannel()
+    {
+        for(int i = 0; i < mChannels.length; i++)
+        {
+            if(mChannels[i] == null)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a session on a free channel. The session waits for the stick
+     * to finish starting up before it configures the channel.
+     *
+     * @return false if every channel is in use
+     */
+    synchronized boolean openSession(short deviceNumber, byte proxSearch)
+    {
+        int free = freeChannel();
+        if(free < 0)
+            return false;
+        GeocacheSession session = new GeocacheSession(this, (byte) free, deviceNumber, proxSearch);
+        mChannels[free] = session;
+        mSessionExecutor.execute(session);
+        return true;
+    }
+
+    /**
+     * Frees the session's channel and lets the gateway decide what runs next.
+     * Called on the session's thread.
+     */
+    void sessionFinished(GeocacheSession session)
+    {
+        synchronized(this)
+        {
+            mChannels[session.mChannel] = null;
+        }
+        mGateway.sessionFinished(session.mRequestedDeviceNumber, session.mConfig.proxSearch);
+    }
+
+    /**
+     * Waits until channels can be set up.
+     *
+     * @throws GeocacheSession.SessionException if the stick failed, or didn't
+     *         accept the network key within NETWORK_TIMEOUT
+     */
+    void awaitNetworkReady() throws InterruptedException, GeocacheSession.SessionException
+    {
+        if(!mNetworkReady.await(NETWORK_TIMEOUT, TimeUnit.MILLISECONDS))
+            fail("No response to the network key");
+        if(mFailed)
+            throw new GeocacheSession.SessionException("Stick failed");
+    }
+
+    public synchronized void onMessage(byte[] buffer, int offset)
+    {
+        byte channelNumber = buffer[offset + AntMesg.MESG_DATA_OFFSET];
+        switch(buffer[offset + AntMesg.MESG_ID_OFFSET])
+        {
+            case AntMesg.MESG_RESPONSE_EVENT_ID:
+                byte messageId = buffer[offset + AntMesg.MESG_DATA_OFFSET + 1];
+                if(messageId == SerialMesg.MESG_NETWORK_KEY_ID)
+                {
+                    // Responses to network commands carry the network number, not a channel
+                    onNetworkKeyResponse(buffer[offset + AntMesg.MESG_DATA_OFFSET + 2]);
+                }
+                else
+                {
+                    deliver(channelNumber, buffer, offset);
+                }
+                break;
+            case AntMesg.MESG_BROADCAST_DATA_ID:
+            case AntMesg.MESG_ACKNOWLEDGED_DATA_ID:
+            case AntMesg.MESG_CHANNEL_ID_ID:
+                deliver(channelNumber, buffer, offset);
+                break;
+        }
+    }
+
+    private void deliver(byte channelNumber, byte[] buffer, int offset)
+    {
+        GeocacheSession session = channelFor(channelNumber);
+        if(session != null)
+            session.mMailbox.put(buffer, offset);
+    }
+
+    private void onNetworkKeyResponse(byte code)
+    {
+        if(code != AntDefine.RESPONSE_NO_ERROR)
+        {
+            fail("Network key rejected (" + code + ")");
+            return;
+        }
+        mNetworkReady.countDown();
+    }
+
+    private GeocacheSession channelFor(byte channelNumber)
+    {
+        int i = channelNumber & 0xFF;
+        return i < mChannels.length ? mChannels[i] : null;
+    }
+
+    public void onTransportError(IOException e)
+    {
+        fail("ANT transport error: " + e);
+    }
+
+    /**
+     * Takes the stick out of use: no new sessions are placed on it, those
+     * waiting for the network key end, and closing the transport ends the
+     * I/O thread.
+     */
+    private synchronized void fail(String reason)
+    {
+        if(mFailed)
+            return;
+        log(reason);
+        mFailed = true;
+        mNetworkReady.countDown();
+        try
+        {
+            mTransport.close();
+        }
+        catch(IOException ignored)
+        {
+            // Nothing more we can do
+        }
+    }
+
+    void log(String message)
+    {
+        System.out.println(mName + ": " + message);
+    }
+
+    void log(byte channel, String message)
+    {
+        System.out.println(mName + "/" + channel + ": " + message);
+    }
+}
@@ -0,0 +1,224 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads geocaches through one or more ANT USB sticks on a Linux gateway.
+ *
+ * Each stick runs its receive loop on its own I/O thread. Every geocache
+ * session runs the same channel configuration sequence and page decoding as
+ * AntPlusManager as blocking code on a thread of its own: a virtual thread
+ * when the JVM has them, otherwise a platform thread with a small stack.
+ * Sessions are sharded across sticks: a new session goes to the stick with
+ * the lowest load, counting searching channels heavier than tracking ones.
+ * A finished session is opened again after REOPEN_DELAY, so every device
+ * number keeps being read. A session with no free channel on any stick
+ * waits for the next channel to come free.
+ * Any serial device node works, including a pseudo-terminal with a scripted
+ * device on the other end.
+ *
+ * Usage: GeocacheGateway &lt;network key hex&gt; &lt;device&gt;[,&lt;device&gt;...] [proximity bin] [device number...]
+ *
+ * Each device number opens one session, 0 searching for any geocache.
+ * With none given a single wildcard session is opened.
+ */
+public class GeocacheGateway
+{
+    /** Channels per stick when not told otherwise (ANT USB2 and USB-m). */
+    public static final int DEFAULT_CHANNELS = 8;
+
+    /** Time between the end of a session and the next read of that device (ms). */
+    private static final long REOPEN_DELAY = 5000;
+
+    /** Stack size requested for platform session threads (bytes). */
+    private static final long SESSION_STACK_SIZE = 64 * 1024;
+
+    /** A device read waiting for a channel. */
+    private static class Request
+    {
+        final short deviceNumber;
+        final byte proxSearch;
+
+        Request(short deviceNumber, byte proxSearch)
+        {
+            this.deviceNumber = deviceNumber;
+            this.proxSearch = proxSearch;
+        }
+    }
+
+    private final List<GatewayStick> mSticks = new ArrayList<GatewayStick>();
+
+    /** Reads waiting for a free channel, oldest first. Guarded by this. */
+    private final LinkedList<Request> mWaiting = new LinkedList<Request>();
+
+    private final byte[] mNetworkKey;
+
+    private final ExecutorService mSessionExecutor = newSessionExecutor();
+
+    private final ScheduledExecutorService mReopenTimer = Executors.newSingleThreadScheduledExecutor();
+
+    private volatile boolean mStopped = false;
+
+    public GeocacheGateway(byte[] networkKey)
+    {
+        mNetworkKey = networkKey;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if(args.length < 2)
+        {
+            System.err.println("Usage: GeocacheGateway <network key hex> <device>[,<device>...] [proximity bin] [device number...]");
+            System.exit(1);
+        }
+        GeocacheGateway gateway = new GeocacheGateway(parseHex(args[0]));
+        for(String path : args[1].split(","))
+            gateway.addStick(path, DEFAULT_CHANNELS);
+
+        byte proxSearch = args.length > 2 ? Byte.parseByte(args[2]) : 0;
+        if(args.length > 3)
+        {
+            for(int i = 3; i < args.length; i++)
+                gateway.openSession((short) Integer.parseInt(args[i]), proxSearch);
+        }
+        else
+        {
+            gateway.openSession(GeocacheSession.WILDCARD, proxSearch);
+        }
+
+        gateway.start();
+        gateway.join();
+    }
+
+    /**
+     * Adds a stick. Sticks must be added before start().
+     */
+    public void addStick(String path, int channelCount) throws IOException
+    {
+        mSticks.add(new GatewayStick(this, path, SerialAntTransport.open(path), mNetworkKey,
+                channelCount, mSessionExecutor));
+    }
+
+    public void start()
+    {
+        for(GatewayStick stick : mSticks)
+            stick.start();
+    }
+
+    public void join() throws InterruptedException
+    {
+        for(GatewayStick stick : mSticks)
+            stick.join();
+        mStopped = true;
+        mReopenTimer.shutdownNow();
+        mSessionExecutor.shutdownNow();
+    }
+
+    /**
+     * Opens a session on the least loaded stick with a free channel, or
+     * queues it for the next channel to come free.
+     *
+     * @return false if it was queued, every channel on every stick being in use
+     */
+    public synchronized boolean openSession(short deviceNumber, byte proxSearch)
+    {
+        if(startSession(deviceNumber, proxSearch))
+            return true;
+        mWaiting.add(new Request(deviceNumber, proxSearch));
+        log("No free channel for device " + (deviceNumber & 0xFFFF) + ", " + mWaiting.size() + " waiting");
+        return false;
+    }
+
+    private boolean startSession(short deviceNumber, byte proxSearch)
+    {
+        GatewayStick best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for(GatewayStick stick : mSticks)
+        {
+            if(!stick.hasFreeChannel())
+                continue;
+            int load = stick.getLoad();
+            if(load < bestLoad)
+            {
+                best = stick;
+                bestLoad = load;
+            }
+        }
+        return best != null && best.openSession(deviceNumber, proxSearch);
+    }
+
+    /**
+     * Hands the channel that came free to the longest waiting read, and
+     * opens the next read of the device once its session ends.
+     */
+    void sessionFinished(final short deviceNumber, final byte proxSearch)
+    {
+        if(mStopped)
+            return;
+        synchronized(this)
+        {
+            while(!mWaiting.isEmpty())
+            {
+                Request next = mWaiting.getFirst();
+                if(!startSession(next.deviceNumber, next.proxSearch))
+                    break;
+                mWaiting.removeFirst();
+            }
+        }
+        mReopenTimer.schedule(new Runnable()
+        {
+            public void run()
+            {
+                openSession(deviceNumber, proxSearch);
+            }
+        }, REOPEN_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void log(String message)
+    {
+        System.out.println("gateway: " + message);
+    }
+
+    /**
+     * One thread per session. Virtual threads are looked up reflectively so
+     * the gateway still builds at the project's source level and uses them
+     * whenever it runs on a JVM that has them.
+     */
+    static ExecutorService newSessionExecutor()
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch(Exception e)
+        {
+            return Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                private int mCount = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(null, r, "session-" + mCount++, SESSION_STACK_SIZE);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    private static byte[] parseHex(String hex)
+    {
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i + 2), 16);
+        return bytes;
+    }
+}
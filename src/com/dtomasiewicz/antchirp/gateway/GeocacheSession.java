@@ -0,0 +1,397 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.io.IOException;
+
+import com.dsi.ant.AntDefine;
+import com.dsi.ant.AntMesg;
+import com.dtomasiewicz.antchirp.ChannelConfiguration;
+import com.dtomasiewicz.antchirp.GeoMesg;
+import com.dtomasiewicz.antchirp.GeocacheDecoder;
+import com.dtomasiewicz.antchirp.TransmitQueue;
+
+/**
+ * Reads one geocache record on one channel of a gateway stick.
+ *
+ * Written as straight-line blocking code on its own thread: configure and
+ * open the channel, wait for the device, request pages until the record is
+ * complete, then close. The stick's I/O thread feeds it messages through a
+ * SessionMailbox, so blocking here never holds up other channels.
+ *
+ * Page requests go through the channel's TransmitQueue, one acknowledged
+ * transfer at a time, as on the handset.
+ */
+class GeocacheSession implements Runnable
+{
+    /** Pair to any device. */
+    static final short WILDCARD = 0;
+
+    /** How long a command may take to be acknowledged (ms). */
+    private static final long RESPONSE_TIMEOUT = 1000;
+
+    /** Upper bound on a search; the stick's own low priority timeout is 30s (ms). */
+    private static final long SEARCH_TIMEOUT = 35000;
+
+    /** How long to wait for requested pages before asking again (ms). */
+    private static final long PAGE_RETRY = 2000;
+
+    private static final int PAGE_ATTEMPTS = 5;
+
+    /** Reports a failed step; the session closes its channel and ends. */
+    static class SessionException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        SessionException(String message)
+        {
+            super(message);
+        }
+    }
+
+    final byte mChannel;
+
+    final ChannelConfiguration mConfig = new ChannelConfiguration();
+
+    /** Device number the session was opened with, WILDCARD included. */
+    final short mRequestedDeviceNumber;
+
+    final SessionMailbox mMailbox = new SessionMailbox();
+
+    private final GatewayStick mStick;
+
+    private final SerialAntTransport mTransport;
+
+    private final GeocacheDecoder mDecoder;
+
+    /** Every acknowledged transfer on the channel, one at a time. */
+    private final TransmitQueue mTx;
+
+    /** Pages requested since the last retry, one bit per page number. */
+    private long mRequestedPages = 0;
+
+    /** The message currently being handled. */
+    private final byte[] mMessage = new byte[SessionMailbox.SLOT_SIZE];
+
+    /**
+     * Channel is being set up or searching. Set from the start so that
+     * placement counts the session as searching right away.
+     */
+    volatile boolean mSearching = true;
+
+    /** When the first broadcast arrived, and how long the record took from there (ms). */
+    private long mTrackingStart = 0;
+
+    private long mRecordTime = -1;
+
+    /** The stick reported EVENT_CHANNEL_CLOSED, e.g. after a search timeout. */
+    private boolean mChannelClosed = false;
+
+    GeocacheSession(GatewayStick stick, byte channel, short deviceNumber, byte proxSearch)
+    {
+        mStick = stick;
+        mTransport = stick.getTransport();
+        mChannel = channel;
+        mRequestedDeviceNumber = deviceNumber;
+
+        mConfig.deviceNumber = deviceNumber;
+        mConfig.deviceType = GeocacheDecoder.DEVICE_TYPE;
+        mConfig.TransmissionType = 0; // Set to 0 for wild card search
+        mConfig.period = GeocacheDecoder.PERIOD;
+        mConfig.freq = GeocacheDecoder.RF_FREQ;
+        mConfig.proxSearch = proxSearch;
+
+        mTx = new TransmitQueue(new TransmitQueue.Transmitter()
+        {
+            public boolean transmit(byte[] payload)
+            {
+                try
+                {
+                    mTransport.sendAcknowledgedData(mChannel, payload);
+                    return true;
+                }
+                catch(IOException e)
+                {
+                    mStick.onTransportError(e);
+                    return false;
+                }
+            }
+        });
+        mDecoder = new GeocacheDecoder(new GeocacheDecoder.PageRequester()
+        {
+            public void requestPage(byte page)
+            {
+                queuePageRequest(page);
+            }
+        });
+    }
+
+    public void run()
+    {
+        try
+        {
+            mStick.awaitNetworkReady();
+            configure();
+            if(awaitDevice())
+            {
+                readRecord();
+                mStick.log(mChannel, describe());
+            }
+            else
+            {
+                mStick.log(mChannel, "Search timed out");
+            }
+            close();
+        }
+        catch(SessionException e)
+        {
+            mStick.log(mChannel, e.getMessage());
+            try
+            {
+                close();
+            }
+            catch(Exception ignored)
+            {
+                // Best effort, the channel is abandoned either way
+            }
+        }
+        catch(IOException e)
+        {
+            mStick.onTransportError(e);
+        }
+        catch(InterruptedException e)
+        {
+            // Gateway shutting down
+        }
+        finally
+        {
+            mStick.sessionFinished(this);
+        }
+    }
+
+    /**
+     * The same configuration sequence AntPlusManager runs from its
+     * responseEventHandler, one acknowledged step at a time.
+     */
+    private void configure() throws IOException, InterruptedException, SessionException
+    {
+        mConfig.isInitializing = true;
+        mTransport.assignChannel(mChannel, AntDefine.PARAMETER_RX_NOT_TX, GatewayStick.ANT_PLUS_NETWORK);
+        expectOk(AntMesg.MESG_ASSIGN_CHANNEL_ID);
+        mTransport.setChannelId(mChannel, mConfig.deviceNumber, mConfig.deviceType, mConfig.TransmissionType);
+        expectOk(AntMesg.MESG_CHANNEL_ID_ID);
+        mTransport.setChannelPeriod(mChannel, mConfig.period);
+        expectOk(AntMesg.MESG_CHANNEL_MESG_PERIOD_ID);
+        mTransport.setChannelRFFreq(mChannel, mConfig.freq);
+        expectOk(AntMesg.MESG_CHANNEL_RADIO_FREQ_ID);
+        mTransport.setChannelSearchTimeout(mChannel, mConfig.searchTimeout); // 0 disables high priority search
+        expectOk(AntMesg.MESG_CHANNEL_SEARCH_TIMEOUT_ID);
+        mTransport.setLowPriorityChannelSearchTimeout(mChannel, mConfig.lowPrioritySearchTimeout); // 12 = 30 seconds (low priority search)
+        expectOk(AntMesg.MESG_SET_LP_SEARCH_TIMEOUT_ID);
+        if(mConfig.deviceNumber == WILDCARD)
+        {
+            mTransport.setProximitySearch(mChannel, mConfig.proxSearch); // Configure proximity search, if using wild card search
+            expectOk(AntMesg.MESG_PROX_SEARCH_CONFIG_ID);
+        }
+        mTransport.openChannel(mChannel);
+        expectOk(AntMesg.MESG_OPEN_CHANNEL_ID);
+        mConfig.isInitializing = false;
+    }
+
+    /**
+     * Waits for the first broadcast and, for a wildcard search, the device
+     * number of whatever was found.
+     *
+     * @return false if the search timed out
+     */
+    private boolean awaitDevice() throws IOException, InterruptedException, SessionException
+    {
+        long deadline = System.currentTimeMillis() + SEARCH_TIMEOUT;
+        while(mSearching)
+        {
+            if(mChannelClosed)
+                return false;
+            if(next(deadline - System.currentTimeMillis()) < 0)
+                return false;
+        }
+        if(mConfig.deviceNumber == WILDCARD)
+        {
+            mTransport.requestMessage(mChannel, AntMesg.MESG_CHANNEL_ID_ID);
+            await(AntMesg.MESG_CHANNEL_ID_ID, RESPONSE_TIMEOUT);
+        }
+        return true;
+    }
+
+    /**
+     * Lets the decoder's own page requests run, asking again for whatever
+     * is still missing until the record is complete.
+     */
+    private void readRecord() throws InterruptedException, SessionException
+    {
+        for(int attempt = 0; attempt < PAGE_ATTEMPTS && !mDecoder.isComplete(); attempt++)
+        {
+            long deadline = System.currentTimeMillis() + PAGE_RETRY;
+            while(!mDecoder.isComplete() && !mChannelClosed)
+            {
+                if(next(deadline - System.currentTimeMillis()) < 0)
+                    break;
+            }
+            if(mChannelClosed)
+                throw new SessionException("Lost device");
+            requestMissingPages();
+        }
+    }
+
+    /** Asks again for every page still missing, whether requested before or not. */
+    private void requestMissingPages()
+    {
+        mRequestedPages = 0;
+        if(!mDecoder.hasPage(GeocacheDecoder.PAGE_ID))
+        {
+            queuePageRequest(GeocacheDecoder.PAGE_ID);
+            return;
+        }
+        if(!mDecoder.hasPage(GeocacheDecoder.PAGE_PIN))
+        {
+            queuePageRequest(GeocacheDecoder.PAGE_PIN);
+            return;
+        }
+        for(int i = GeocacheDecoder.PAGE_PIN+1; i < mDecoder.getTotalPages(); i++)
+        {
+            if(!mDecoder.hasPage(i))
+                queuePageRequest((byte) i);
+        }
+    }
+
+    /**
+     * Queues a request for a page unless it was already requested since
+     * the last retry. The decoder asks again on every repeat of the ID and
+     * PIN pages, four times a second.
+     */
+    private void queuePageRequest(byte page)
+    {
+        if((mRequestedPages & (1L << page)) != 0)
+            return;
+        mRequestedPages |= 1L << page;
+        mTx.send(GeoMesg.requestDataPage(page), null);
+    }
+
+    private void close() throws IOException, InterruptedException, SessionException
+    {
+        mConfig.isDeinitializing = true;
+        mTx.clear();
+        if(!mChannelClosed)
+        {
+            mTransport.closeChannel(mChannel);
+            awaitEvent(AntDefine.EVENT_CHANNEL_CLOSED);
+        }
+        mTransport.unassignChannel(mChannel);
+        expectOk(AntMesg.MESG_UNASSIGN_CHANNEL_ID);
+        mConfig.isDeinitializing = false;
+    }
+
+    private void expectOk(byte messageId) throws InterruptedException, SessionException
+    {
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+        while(true)
+        {
+            if(next(deadline - System.currentTimeMillis()) < 0)
+                throw new SessionException(String.format("No response to message ID(%#02x)", messageId));
+            if(mMessage[AntMesg.MESG_ID_OFFSET] == AntMesg.MESG_RESPONSE_EVENT_ID
+                    && mMessage[AntMesg.MESG_DATA_OFFSET + 1] == messageId)
+            {
+                byte code = mMessage[AntMesg.MESG_DATA_OFFSET + 2];
+                if(code != AntDefine.RESPONSE_NO_ERROR)
+                    throw new SessionException(String.format("Error code(%#02x) on message ID(%#02x)", code, messageId));
+                return;
+            }
+        }
+    }
+
+    private void awaitEvent(byte event) throws InterruptedException, SessionException
+    {
+        long deadline = System.currentTimeMillis() + RESPONSE_TIMEOUT;
+        while(true)
+        {
+            if(next(deadline - System.currentTimeMillis()) < 0)
+                throw new SessionException(String.format("No event(%#02x)", event));
+            if(isEvent(event))
+                return;
+        }
+    }
+
+    private void await(byte messageId, long timeout) throws InterruptedException, SessionException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true)
+        {
+            if(next(deadline - System.currentTimeMillis()) < 0)
+                throw new SessionException(String.format("No message ID(%#02x)", messageId));
+            if(mMessage[AntMesg.MESG_ID_OFFSET] == messageId)
+                return;
+        }
+    }
+
+    /**
+     * Takes the next message into mMessage and handles anything that
+     * matters whatever the session is waiting for: broadcasts are decoded,
+     * transfer outcomes passed to the transmit queue, device numbers and
+     * channel closure recorded.
+     *
+     * @return the message ID, or -1 if nothing arrived in time
+     */
+    private int next(long timeout) throws InterruptedException
+    {
+        if(timeout <= 0 || !mMailbox.take(mMessage, timeout))
+            return -1;
+
+        byte messageId = mMessage[AntMesg.MESG_ID_OFFSET];
+        switch(messageId)
+        {
+            case AntMesg.MESG_BROADCAST_DATA_ID:
+            case AntMesg.MESG_ACKNOWLEDGED_DATA_ID:
+                if(mSearching)
+                {
+                    mSearching = false;
+                    mTrackingStart = System.currentTimeMillis();
+                }
+                mDecoder.decodePage(mMessage, AntMesg.MESG_DATA_OFFSET + 1);
+                if(mRecordTime < 0 && mDecoder.isComplete())
+                    mRecordTime = System.currentTimeMillis() - mTrackingStart;
+                break;
+            case AntMesg.MESG_CHANNEL_ID_ID:
+                mConfig.deviceNumber = (short) ((mMessage[AntMesg.MESG_DATA_OFFSET + 1] & 0xFF)
+                        | ((mMessage[AntMesg.MESG_DATA_OFFSET + 2] & 0xFF) << 8));
+                break;
+            case AntMesg.MESG_RESPONSE_EVENT_ID:
+                if(isEvent(AntDefine.EVENT_CHANNEL_CLOSED))
+                {
+                    mChannelClosed = true;
+                    mTx.clear();
+                }
+                else if(isEvent(AntDefine.EVENT_TRANSFER_TX_COMPLETED))
+                {
+                    mTx.onCompleted();
+                }
+                else if(isEvent(AntDefine.EVENT_TRANSFER_TX_FAILED))
+                {
+                    mTx.onFailed();
+                }
+                break;
+        }
+        return messageId;
+    }
+
+    private boolean isEvent(byte event)
+    {
+        return mMessage[AntMesg.MESG_ID_OFFSET] == AntMesg.MESG_RESPONSE_EVENT_ID
+                && mMessage[AntMesg.MESG_DATA_OFFSET + 1] == AntMesg.MESG_EVENT_ID
+                && mMessage[AntMesg.MESG_DATA_OFFSET + 2] == event;
+    }
+
+    private String describe()
+    {
+        return (mConfig.deviceNumber & 0xFFFF) + " " + mDecoder.getID() + " pin=" + mDecoder.getPIN()
+                + " lat=" + mDecoder.getLatitude() + " lon=" + mDecoder.getLongitude()
+                + " hint=" + mDecoder.getHint() + " visits=" + mDecoder.getLoggedVisits()
+                + (mDecoder.isComplete() ? " in " + mRecordTime + "ms" : " (incomplete)");
+    }
+}
@@ -0,0 +1,219 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import com.dsi.ant.AntMesg;
+
+/**
+ * Talks to an ANT USB stick over its serial byte stream.
+ *
+ * Received messages are framed in place in the receive buffer by an
+ * AntFrameParser and handed to the listener as an offset into that buffer,
+ * so nothing is copied per message. The offset points at the length byte, which lets the AntMesg
+ * offsets used by the handset code index into it unchanged.
+ */
+public class SerialAntTransport implements Runnable
+{
+    public interface MessageListener
+    {
+        /**
+         * Called on the receive thread for every valid message.
+         * The buffer is reused once this returns.
+         *
+         * @param buffer buffer holding the message
+         * @param offset index of the message length byte
+         */
+        public void onMessage(byte[] buffer, int offset);
+
+        public void onTransportError(IOException e);
+    }
+
+    private static final int RX_BUFFER_SIZE = 4096;
+
+    private final ReadableByteChannel mRxChannel;
+
+    private final WritableByteChannel mTxChannel;
+
+    private final ByteBuffer mRxBuffer = ByteBuffer.allocate(RX_BUFFER_SIZE);
+
+    private final ByteBuffer mTxBuffer = ByteBuffer.allocate(SerialMesg.MESG_MAX_DATA_SIZE + SerialMesg.MESG_FRAME_OVERHEAD);
+
+    private final AntFrameParser mParser = new AntFrameParser();
+
+    private MessageListener mListener;
+
+    public SerialAntTransport(ReadableByteChannel rxChannel, WritableByteChannel txChannel)
+    {
+        mRxChannel = rxChannel;
+        mTxChannel = txChannel;
+    }
+
+    /**
+     * Opens a serial device node (or the slave side of a pseudo-terminal).
+     * Line settings are expected to have been applied already, e.g. with stty.
+     * Reads and writes use separate channels because a single FileChannel
+     * blocks writes while a read is pending.
+     */
+    public static SerialAntTransport open(String path) throws IOException
+    {
+        return new SerialAntTransport(new FileInputStream(path).getChannel(),
+                new FileOutputStream(path).getChannel());
+    }
+
+    public void setListener(MessageListener listener)
+    {
+        mListener = listener;
+    }
+
+    public AntFrameParser getParser()
+    {
+        return mParser;
+    }
+
+    public void close() throws IOException
+    {
+        mRxChannel.close();
+        mTxChannel.close();
+    }
+
+    /**
+     * Receive loop. Blocks until the channel is closed or fails.
+     */
+    public void run()
+    {
+        try
+        {
+            while(mRxChannel.isOpen())
+            {
+                if(mRxChannel.read(mRxBuffer) < 0)
+                    break;
+                mRxBuffer.flip();
+                frameMessages();
+                mRxBuffer.compact();
+            }
+        }
+        catch(ClosedChannelException e)
+        {
+            // Closed from another thread, that's how we are stopped
+        }
+        catch(IOException e)
+        {
+            if(mListener != null)
+                mListener.onTransportError(e);
+        }
+    }
+
+    /**
+     * Dispatches every complete message between position and limit, leaving
+     * the position at the first byte of any partial message.
+     */
+    private void frameMessages()
+    {
+        byte[] buf = mRxBuffer.array();
+        int base = mRxBuffer.arrayOffset();
+        AntFrameParser.Frame frame;
+        while((frame = mParser.next(mRxBuffer)) != null)
+        {
+            if(mListener != null)
+                mListener.onMessage(buf, base + frame.offset());
+        }
+    }
+
+    private synchronized void send(byte id, byte... data) throws IOException
+    {
+        mTxBuffer.clear();
+        mTxBuffer.put(SerialMesg.MESG_TX_SYNC);
+        mTxBuffer.put((byte) data.length);
+        mTxBuffer.put(id);
+        mTxBuffer.put(data);
+        byte checksum = 0;
+        for(int i = 0; i < mTxBuffer.position(); i++)
+            checksum ^= mTxBuffer.get(i);
+        mTxBuffer.put(checksum);
+        mTxBuffer.flip();
+        while(mTxBuffer.hasRemaining())
+            mTxChannel.write(mTxBuffer);
+    }
+
+    public void resetSystem() throws IOException
+    {
+        send(SerialMesg.MESG_SYSTEM_RESET_ID, (byte) 0);
+    }
+
+    public void setNetworkKey(byte network, byte[] key) throws IOException
+    {
+        byte[] data = new byte[key.length + 1];
+        data[0] = network;
+        System.arraycopy(key, 0, data, 1, key.length);
+        send(SerialMesg.MESG_NETWORK_KEY_ID, data);
+    }
+
+    public void assignChannel(byte channel, byte channelType, byte network) throws IOException
+    {
+        send(AntMesg.MESG_ASSIGN_CHANNEL_ID, channel, channelType, network);
+    }
+
+    public void setChannelId(byte channel, short deviceNumber, byte deviceType, byte txType) throws IOException
+    {
+        send(AntMesg.MESG_CHANNEL_ID_ID, channel, (byte) deviceNumber, (byte) (deviceNumber >> 8), deviceType, txType);
+    }
+
+    public void setChannelPeriod(byte channel, short period) throws IOException
+    {
+        send(AntMesg.MESG_CHANNEL_MESG_PERIOD_ID, channel, (byte) period, (byte) (period >> 8));
+    }
+
+    public void setChannelRFFreq(byte channel, byte freq) throws IOException
+    {
+        send(AntMesg.MESG_CHANNEL_RADIO_FREQ_ID, channel, freq);
+    }
+
+    public void setChannelSearchTimeout(byte channel, byte timeout) throws IOException
+    {
+        send(AntMesg.MESG_CHANNEL_SEARCH_TIMEOUT_ID, channel, timeout);
+    }
+
+    public void setLowPriorityChannelSearchTimeout(byte channel, byte timeout) throws IOException
+    {
+        send(AntMesg.MESG_SET_LP_SEARCH_TIMEOUT_ID, channel, timeout);
+    }
+
+    public void setProximitySearch(byte channel, byte bin) throws IOException
+    {
+        send(AntMesg.MESG_PROX_SEARCH_CONFIG_ID, channel, bin);
+    }
+
+    public void openChannel(byte channel) throws IOException
+    {
+        send(AntMesg.MESG_OPEN_CHANNEL_ID, channel);
+    }
+
+    public void closeChannel(byte channel) throws IOException
+    {
+        send(SerialMesg.MESG_CLOSE_CHANNEL_ID, channel);
+    }
+
+    public void unassignChannel(byte channel) throws IOException
+    {
+        send(AntMesg.MESG_UNASSIGN_CHANNEL_ID, channel);
+    }
+
+    public void requestMessage(byte channel, byte messageId) throws IOException
+    {
+        send(SerialMesg.MESG_REQUEST_ID, channel, messageId);
+    }
+
+    public void sendAcknowledgedData(byte channel, byte[] data) throws IOException
+    {
+        byte[] payload = new byte[data.length + 1];
+        payload[0] = channel;
+        System.arraycopy(data, 0, payload, 1, data.length);
+        send(AntMesg.MESG_ACKNOWLEDGED_DATA_ID, payload);
+    }
+}
@@ -0,0 +1,24 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+/**
+ * Serial framing constants and the host commands that the ANT Radio Service
+ * normally sends on our behalf. Message offsets and the remaining IDs come
+ * from AntMesg, which indexes from the length byte of a frame.
+ */
+public class SerialMesg
+{
+    public static final byte MESG_TX_SYNC = (byte) 0xA4;
+
+    /** Sync, length, ID and checksum bytes around each payload. */
+    public static final int MESG_FRAME_OVERHEAD = 4;
+
+    /** Largest payload an ANT message can carry (extended data included). */
+    public static final int MESG_MAX_DATA_SIZE = 41;
+
+    public static final byte MESG_NETWORK_KEY_ID = (byte) 0x46;
+    public static final byte MESG_SYSTEM_RESET_ID = (byte) 0x4A;
+    public static final byte MESG_CLOSE_CHANNEL_ID = (byte) 0x4C;
+    public static final byte MESG_REQUEST_ID = (byte) 0x4D;
+
+    protected SerialMesg() {}
+}
@@ -0,0 +1,86 @@
+package com.dtomasiewicz.antchirp.gateway;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands messages from a stick's I/O thread to one session's thread.
+ *
+ * Messages are copied into a fixed ring of preallocated slots, because the
+ * receive buffer they were framed in is reused as soon as the I/O thread
+ * moves on. When the ring is full the oldest message is dropped; a session
+ * that far behind has already missed a broadcast that will be repeated.
+ * Uses a lock rather than monitors so that blocked virtual threads don't
+ * pin their carrier.
+ */
+class SessionMailbox
+{
+    /** Length byte, ID and data, as framed by AntFrameParser. */
+    static final int SLOT_SIZE = SerialMesg.MESG_MAX_DATA_SIZE + 2;
+
+    private static final int SLOTS = 16;
+
+    private final byte[][] mSlots = new byte[SLOTS][SLOT_SIZE];
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    private int mHead = 0;
+
+    private int mCount = 0;
+
+    /**
+     * Copies the message starting at the length byte at offset.
+     */
+    void put(byte[] buffer, int offset)
+    {
+        int length = (buffer[offset] & 0xFF) + 2;
+        mLock.lock();
+        try
+        {
+            if(mCount == SLOTS)
+            {
+                mHead = (mHead + 1) % SLOTS;
+                mCount--;
+            }
+            System.arraycopy(buffer, offset, mSlots[(mHead + mCount) % SLOTS], 0, length);
+            mCount++;
+            mNotEmpty.signal();
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Copies the oldest message into message, waiting up to timeout ms.
+     *
+     * @return false if nothing arrived in time
+     */
+    boolean take(byte[] message, long timeout) throws InterruptedException
+    {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        mLock.lock();
+        try
+        {
+            while(mCount == 0)
+            {
+                if(remaining <= 0)
+                    return false;
+                remaining = mNotEmpty.awaitNanos(remaining);
+            }
+            byte[] slot = mSlots[mHead];
+            System.arraycopy(slot, 0, message, 0, (slot[0] & 0xFF) + 2);
+            mHead = (mHead + 1) % SLOTS;
+            mCount--;
+            return true;
+        }
+        finally
+        {
+            mLock.unlock();
+        }
+    }
+}
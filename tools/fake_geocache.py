@@ -0,0 +1,235 @@
+#!/usr/bin/env python3
+"""Scripted ANT USB stick with one Geocache in range, on a pseudo-terminal.
+
+Opens a pty, prints the path of its slave side and then answers the host
+commands the gateway sends down it the way a stick would: responses to
+every configuration command, broadcasts at 4Hz on each open channel,
+requested pages, the channel ID on request, and channel closed events.
+See tools/README for running GeocacheGateway against it.
+
+Usage: fake_geocache.py [--device N] [--id ID] [--noise]
+"""
+
+import argparse
+import os
+import pty
+import select
+import struct
+import time
+import tty
+
+SYNC = 0xA4
+
+# Message IDs, as in AntMesg and SerialMesg
+UNASSIGN_CHANNEL = 0x41
+ASSIGN_CHANNEL = 0x42
+CHANNEL_PERIOD = 0x43
+SEARCH_TIMEOUT = 0x44
+RADIO_FREQ = 0x45
+NETWORK_KEY = 0x46
+SYSTEM_RESET = 0x4A
+OPEN_CHANNEL = 0x4B
+CLOSE_CHANNEL = 0x4C
+REQUEST = 0x4D
+BROADCAST_DATA = 0x4E
+ACKNOWLEDGED_DATA = 0x4F
+CHANNEL_ID = 0x51
+LP_SEARCH_TIMEOUT = 0x63
+PROX_SEARCH = 0x71
+RESPONSE_EVENT = 0x40
+STARTUP = 0x6F
+
+# Channel events, as in AntDefine
+EVENT = 0x01
+EVENT_TRANSFER_TX_COMPLETED = 0x05
+EVENT_CHANNEL_CLOSED = 0x07
+
+GEOCACHE_DEVICE_TYPE = 0x13
+REQUEST_DATA_PAGE = 70
+
+# Broadcast period of a Geocache, 4Hz
+PERIOD = 0.25
+
+
+def frame(mesg_id, data):
+    body = bytes([SYNC, len(data), mesg_id]) + bytes(data)
+    checksum = 0
+    for b in body:
+        checksum ^= b
+    return body + bytes([checksum])
+
+
+def ascii6(text, length):
+    """Packs text six bits a character, as GeocacheDecoder.decodeAscii6 reads it."""
+    bits = 0
+    for c in text.upper().ljust(length)[:length]:
+        bits = (bits << 6) | ((ord(c) - 0x20) & 0x3F)
+    total = length * 6
+    padded = (total + 7) // 8 * 8
+    return (bits << (padded - total)).to_bytes(padded // 8, 'big')
+
+
+def semicircles(degrees):
+    return int(degrees * (1 << 31) / 180)
+
+
+def geocache_pages(cache_id, pin, latitude, longitude, hint, visits):
+    """The cache's data pages by number, 8 bytes each, page number first."""
+    pages = {}
+    pages[0] = bytes([0]) + ascii6(cache_id, 9)
+    prog = [
+        bytes([0]) + struct.pack('<i', semicircles(latitude)) + b'\xff\xff',
+        bytes([1]) + struct.pack('<i', semicircles(longitude)) + b'\xff\xff',
+    ]
+    for i in range(0, len(hint), 6):
+        prog.append(bytes([2]) + hint[i:i + 6].encode('ascii').ljust(6, b'\0'))
+    last_visit = int(time.time()) - 631065600 - 3600  # ANT epoch, an hour ago
+    prog.append(bytes([4]) + struct.pack('<IH', last_visit, visits))
+    total = 2 + len(prog)
+    pages[1] = bytes([1, 0xFF]) + struct.pack('<I', pin) + bytes([total, 0xFF])
+    for i, page in enumerate(prog):
+        pages[2 + i] = bytes([2 + i]) + page
+    return pages
+
+
+class Channel:
+    def __init__(self):
+        self.device = 0
+        self.open = False
+        self.rotation = 0
+        self.requested = []
+        self.next_broadcast = 0
+
+
+class FakeStick:
+    def __init__(self, fd, device, pages, noise):
+        self.fd = fd
+        self.device = device
+        self.pages = pages
+        self.noise = noise
+        self.channels = {}
+        self.rx = bytearray()
+        self.sent = 0
+
+    def send(self, mesg_id, data):
+        out = frame(mesg_id, data)
+        if self.noise and self.sent % 7 == 3:
+            # Garbage between frames, a stray sync byte included, to exercise resync
+            out = bytes([0x00, SYNC, 0x55]) + out
+        self.sent += 1
+        os.write(self.fd, out)
+
+    def respond(self, channel, mesg_id, code=0):
+        self.send(RESPONSE_EVENT, [channel, mesg_id, code])
+
+    def event(self, channel, code):
+        self.send(RESPONSE_EVENT, [channel, EVENT, code])
+
+    def channel(self, number):
+        return self.channels.setdefault(number, Channel())
+
+    def receive(self, data):
+        self.rx += data
+        while True:
+            start = self.rx.find(bytes([SYNC]))
+            if start < 0:
+                self.rx.clear()
+                return
+            del self.rx[:start]
+            if len(self.rx) < 4 or len(self.rx) < self.rx[1] + 4:
+                return
+            length = self.rx[1]
+            message = bytes(self.rx[:length + 4])
+            checksum = 0
+            for b in message:
+                checksum ^= b
+            if checksum != 0:
+                del self.rx[:1]
+                continue
+            del self.rx[:length + 4]
+            self.handle(message[2], message[3:3 + length])
+
+    def handle(self, mesg_id, data):
+        if mesg_id == SYSTEM_RESET:
+            self.channels.clear()
+            self.send(STARTUP, [0x00])
+        elif mesg_id == NETWORK_KEY:
+            self.respond(data[0], NETWORK_KEY)
+        elif mesg_id == CHANNEL_ID:
+            self.channel(data[0]).device = data[1] | data[2] << 8
+            self.respond(data[0], mesg_id)
+        elif mesg_id in (ASSIGN_CHANNEL, CHANNEL_PERIOD, RADIO_FREQ, SEARCH_TIMEOUT,
+                         LP_SEARCH_TIMEOUT, PROX_SEARCH, UNASSIGN_CHANNEL):
+            self.respond(data[0], mesg_id)
+        elif mesg_id == OPEN_CHANNEL:
+            self.respond(data[0], mesg_id)
+            channel = self.channel(data[0])
+            if channel.device in (0, self.device):
+                channel.open = True
+                # A second or so of searching before the cache is found
+                channel.next_broadcast = time.monotonic() + 1
+            print('channel %d open, device %d' % (data[0], channel.device), flush=True)
+        elif mesg_id == CLOSE_CHANNEL:
+            self.respond(data[0], mesg_id)
+            self.channel(data[0]).open = False
+            self.event(data[0], EVENT_CHANNEL_CLOSED)
+            print('channel %d closed' % data[0], flush=True)
+        elif mesg_id == REQUEST and data[1] == CHANNEL_ID:
+            self.send(CHANNEL_ID, [data[0], self.device & 0xFF, self.device >> 8,
+                                   GEOCACHE_DEVICE_TYPE, 0x01])
+        elif mesg_id == ACKNOWLEDGED_DATA:
+            channel = self.channel(data[0])
+            self.event(data[0], EVENT_TRANSFER_TX_COMPLETED)
+            if data[1] == REQUEST_DATA_PAGE and data[7] in self.pages:
+                if data[7] not in channel.requested:
+                    channel.requested.append(data[7])
+
+    def broadcast(self):
+        now = time.monotonic()
+        for number, channel in self.channels.items():
+            if not channel.open or now < channel.next_broadcast:
+                continue
+            channel.next_broadcast = now + PERIOD
+            if channel.requested:
+                page = channel.requested.pop(0)
+            else:
+                # Unasked, a cache repeats its ID and PIN pages
+                page = channel.rotation % 2
+                channel.rotation += 1
+            self.send(BROADCAST_DATA, [number] + list(self.pages[page]))
+
+    def timeout(self):
+        waits = [c.next_broadcast - time.monotonic() for c in self.channels.values() if c.open]
+        return max(0, min(waits)) if waits else None
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Scripted ANT stick with one Geocache in range.')
+    parser.add_argument('--device', type=int, default=4321, help='the cache\'s device number')
+    parser.add_argument('--id', default='GC1ANTCH', help='the cache\'s ID, up to 9 characters')
+    parser.add_argument('--noise', action='store_true', help='put garbage between some frames')
+    args = parser.parse_args()
+
+    master, slave = pty.openpty()
+    # Raw, so the line discipline passes every byte through untouched
+    tty.setraw(slave)
+    print(os.ttyname(slave), flush=True)
+
+    pages = geocache_pages(args.id, 123456, 49.2827, -123.1207, 'Under the bench', 7)
+    stick = FakeStick(master, args.device, pages, args.noise)
+    try:
+        while True:
+            ready, _, _ = select.select([master], [], [], stick.timeout())
+            if ready:
+                try:
+                    stick.receive(os.read(master, 1024))
+                except OSError:
+                    # The gateway closed the slave side; wait for it to open it again
+                    time.sleep(0.1)
+            stick.broadcast()
+    except KeyboardInterrupt:
+        pass
+
+
+if __name__ == '__main__':
+    main()